@@ -0,0 +1,72 @@
+package org.daisy.streamline.api.config;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provides an immutable copy of a configuration. The hash code is computed
+ * once, which makes instances of this class efficient to use as keys.
+ * @author Joel Håkansson
+ */
+final class ConfigurationSnapshot extends AbstractMap<String, Object> {
+	private final Map<String, Object> values;
+	private final int hash;
+
+	private ConfigurationSnapshot(Map<String, Object> values) {
+		this.values = Collections.unmodifiableMap(new HashMap<>(values));
+		this.hash = this.values.hashCode();
+	}
+
+	/**
+	 * Creates a snapshot of the specified configuration. If the configuration
+	 * is already a snapshot, it is returned as is.
+	 * @param values the configuration
+	 * @return a snapshot
+	 */
+	static ConfigurationSnapshot of(Map<String, Object> values) {
+		if (values instanceof ConfigurationSnapshot) {
+			return (ConfigurationSnapshot)values;
+		}
+		return new ConfigurationSnapshot(values);
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return values.entrySet();
+	}
+
+	@Override
+	public Object get(Object key) {
+		return values.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return values.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return values.size();
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this==o) {
+			return true;
+		}
+		if (o instanceof ConfigurationSnapshot && ((ConfigurationSnapshot)o).hash!=hash) {
+			return false;
+		}
+		return values.equals(o);
+	}
+
+}
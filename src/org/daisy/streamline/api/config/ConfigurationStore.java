@@ -0,0 +1,961 @@
+package org.daisy.streamline.api.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Provides a log-structured store of configurations. Configurations are
+ * appended to a journal file and located using an index file with fixed-size
+ * records. Only the identifier and details of each configuration are read when
+ * the store is loaded, the configuration data is read when it's requested. The
+ * configuration data is then kept as an immutable map using a soft reference,
+ * which means that it's read again if the memory is needed elsewhere.</p>
+ *
+ * <p>Every change is given a sequence number, and the index records are kept in
+ * sequence order. When the store is refreshed, only the changes that have been
+ * appended since it was last read are applied.</p>
+ *
+ * <p>The sequence number of the record that last wrote a configuration is used as
+ * the version of that configuration. Writers can read a configuration and its
+ * version without locking and write the modified configuration only if the version
+ * is unchanged when the write is committed.</p>
+ *
+ * <p>Readers use an immutable snapshot of the entries, which is replaced
+ * after every modification. Reading doesn't block, except when the journal
+ * has been compacted by someone else.</p>
+ *
+ * <p>Each journal record is prefixed with its length and a checksum. A record
+ * is considered to be part of the journal once its index record has been written.
+ * This means that the store can be read while another process is appending to it
+ * and that an interrupted append doesn't corrupt the store. Replaced and removed
+ * configurations are dropped from the journal when it is compacted, which happens
+ * when the obsolete records make up more than half of the journal.</p>
+ *
+ * <p>If the index is missing or doesn't belong to the journal, for example while
+ * another process is compacting the journal, the index is rebuilt in memory by
+ * scanning the journal. The rebuilt index is written before the next modification,
+ * never by a reader.</p>
+ *
+ * <p>Modifications must be made while holding the {@link ExclusiveAccess} lock
+ * of the store's folder and should be preceded by a call to {@link #refresh()}.</p>
+ *
+ * @author Joel Håkansson
+ */
+final class ConfigurationStore {
+	private static final Logger logger = Logger.getLogger(ConfigurationStore.class.getCanonicalName());
+	static final String JOURNAL_FILE_NAME = "configurations.dat";
+	static final String INDEX_FILE_NAME = "configurations.idx";
+	/**
+	 * The version of a configuration that isn't in the store.
+	 */
+	static final long ABSENT = 0;
+	/**
+	 * Matches any version, see {@link #put(String, EncodedConfiguration, long)}.
+	 */
+	static final long ANY_VERSION = -1;
+	private static final String IDENTIFIER_PREFIX = Inventory.class.getCanonicalName() + "_";
+	private static final int JOURNAL_MAGIC = 0x55434a31; // UCJ1
+	private static final int INDEX_MAGIC = 0x55434931; // UCI1
+	// magic, generation, base sequence
+	private static final int JOURNAL_HEADER_SIZE = 20;
+	// magic, generation
+	private static final int INDEX_HEADER_SIZE = 12;
+	// sequence, offset, length, type, padding
+	static final int INDEX_RECORD_SIZE = 24;
+	// length, checksum
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final long DEFAULT_COMPACTION_THRESHOLD = 64*1024;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_DOUBLE = 4;
+	private static final byte TYPE_BOOLEAN = 5;
+	private static final byte TYPE_SERIALIZED = 6;
+
+	private final Path dir;
+	private final Path journal;
+	private final Path index;
+	private final long compactionThreshold;
+	// The fields below are guarded by this instance
+	private Map<String, Entry> entries;
+	// 0 if the journal doesn't exist
+	private long generation;
+	// the sequence number of the most recent record
+	private long sequence;
+	private long journalSize;
+	private long indexSize;
+	private long liveBytes;
+	// The index records rebuilt from the journal, or null if the index file matches the journal
+	private List<IndexRecord> rebuiltIndex;
+	// An immutable copy of the entries, used by readers
+	private volatile Snapshot snapshot;
+
+	private static final class Snapshot {
+		private final long generation;
+		private final Map<String, Entry> entries;
+		private final Set<ConfigurationDetails> details;
+
+		private Snapshot(long generation, Map<String, Entry> entries) {
+			this.generation = generation;
+			this.entries = Collections.unmodifiableMap(new HashMap<>(entries));
+			this.details = Collections.unmodifiableSet(
+					entries.values().stream().map(v->v.details).collect(Collectors.toSet()));
+		}
+	}
+
+	private static final class Entry {
+		private final ConfigurationDetails details;
+		private final long sequence;
+		private final long offset;
+		private final int length;
+		// The configuration data is kept for as long as memory permits
+		private volatile SoftReference<ConfigurationSnapshot> payload;
+
+		private Entry(ConfigurationDetails details, long sequence, long offset, int length) {
+			this.details = details;
+			this.sequence = sequence;
+			this.offset = offset;
+			this.length = length;
+			this.payload = null;
+		}
+
+		private ConfigurationSnapshot getPayload() {
+			SoftReference<ConfigurationSnapshot> ref = payload;
+			return ref!=null?ref.get():null;
+		}
+
+		private void setPayload(ConfigurationSnapshot value) {
+			payload = new SoftReference<>(value);
+		}
+
+		private long size() {
+			return RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	/**
+	 * Provides a configuration that has been encoded for writing,
+	 * see {@link ConfigurationStore#encode(String, String, Map)}.
+	 */
+	static final class EncodedConfiguration {
+		private final String niceName;
+		private final String description;
+		private final ConfigurationSnapshot values;
+		private final byte[] data;
+
+		private EncodedConfiguration(String niceName, String description, ConfigurationSnapshot values, byte[] data) {
+			this.niceName = niceName;
+			this.description = description;
+			this.values = values;
+			this.data = data;
+		}
+	}
+
+	private static final class IndexRecord {
+		private final long sequence;
+		private final long offset;
+		private final int length;
+		private final byte type;
+
+		private IndexRecord(long sequence, long offset, int length, byte type) {
+			this.sequence = sequence;
+			this.offset = offset;
+			this.length = length;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Creates a new store in the specified folder. The store is empty
+	 * until {@link #refresh()} is called.
+	 * @param dir the folder
+	 */
+	ConfigurationStore(File dir) {
+		this(dir, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * Creates a new store in the specified folder.
+	 * @param dir the folder
+	 * @param compactionThreshold the minimum number of obsolete bytes in the
+	 * 		journal before it is compacted
+	 */
+	ConfigurationStore(File dir, long compactionThreshold) {
+		this.dir = dir.toPath();
+		this.journal = this.dir.resolve(JOURNAL_FILE_NAME);
+		this.index = this.dir.resolve(INDEX_FILE_NAME);
+		this.compactionThreshold = compactionThreshold;
+		reset();
+		publish();
+	}
+
+	private void reset() {
+		this.entries = new HashMap<>();
+		this.generation = 0;
+		this.sequence = 0;
+		this.journalSize = 0;
+		this.indexSize = 0;
+		this.liveBytes = 0;
+		this.rebuiltIndex = null;
+	}
+
+	private void publish() {
+		this.snapshot = new Snapshot(generation, entries);
+	}
+
+	/**
+	 * Reads the changes made by someone else. If records have been appended,
+	 * only the new records are read. If the journal has been compacted, the
+	 * store is reloaded.
+	 * @throws IOException if the files could not be read
+	 */
+	synchronized void refresh() throws IOException {
+		if (readGeneration()!=generation) {
+			load();
+		} else if (rebuiltIndex!=null) {
+			// Nothing can be appended until the index has been written
+			if (readIndexGeneration()==generation) {
+				load();
+			}
+		} else {
+			long size = Files.exists(index)?Files.size(index):0;
+			if (size<indexSize) {
+				load();
+			} else if (size>indexSize) {
+				catchUp(size);
+			}
+		}
+	}
+
+	/**
+	 * Gets the sequence number of the most recent change.
+	 * @return the sequence number
+	 */
+	synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Gets the identifiers in the store. This method doesn't block.
+	 * @return an unmodifiable set of identifiers
+	 */
+	Set<String> keys() {
+		return snapshot.entries.keySet();
+	}
+
+	/**
+	 * Gets the details of the configurations in the store. This method doesn't block.
+	 * @return an unmodifiable set of details
+	 */
+	Set<ConfigurationDetails> getDetails() {
+		return snapshot.details;
+	}
+
+	/**
+	 * Returns true if the store contains the specified identifier. This method doesn't block.
+	 * @param key the identifier
+	 * @return true if the store contains the identifier, false otherwise
+	 */
+	boolean contains(String key) {
+		return snapshot.entries.containsKey(key);
+	}
+
+	/**
+	 * Creates an identifier that isn't used in the store.
+	 * @return a new identifier
+	 */
+	synchronized String nextIdentifier() {
+		long n = sequence;
+		String ret;
+		do {
+			n++;
+			ret = IDENTIFIER_PREFIX + n;
+		} while (entries.containsKey(ret));
+		return ret;
+	}
+
+	/**
+	 * Reads a configuration from the store. This method only blocks if the
+	 * journal has been compacted by someone else, in which case the store
+	 * is reloaded.
+	 * @param key the identifier
+	 * @return the configuration, with an unmodifiable map, or null if the store
+	 * 		doesn't contain the identifier
+	 * @throws IOException if the configuration could not be read
+	 */
+	Configuration read(String key) throws IOException {
+		Snapshot s = snapshot;
+		Entry e = s.entries.get(key);
+		if (e==null) {
+			return null;
+		}
+		ConfigurationSnapshot cached = e.getPayload();
+		if (cached!=null) {
+			return new Configuration(e.details, cached);
+		}
+		try (FileChannel fc = FileChannel.open(journal, StandardOpenOption.READ)) {
+			// Once opened, the channel reads from the same journal even if it's replaced
+			if (readGeneration(fc)!=s.generation) {
+				synchronized (this) {
+					if (generation==s.generation) {
+						// The journal has been compacted by someone else
+						load();
+					}
+				}
+				return read(key);
+			}
+			DataInputStream is = new DataInputStream(new ByteArrayInputStream(readRecord(fc, e.offset, e.length)));
+			if (is.readByte()!=PUT || is.readLong()!=e.sequence) {
+				throw new IOException("Unexpected record for " + key + " in " + journal);
+			}
+			readString(is);
+			ConfigurationDetails details = readDetails(key, is);
+			ConfigurationSnapshot ret = ConfigurationSnapshot.of(readMap(is));
+			e.setPayload(ret);
+			return new Configuration(details, ret);
+		}
+	}
+
+	/**
+	 * Gets the version of a configuration. The version is changed every
+	 * time the configuration is written. This method doesn't block.
+	 * @param key the identifier
+	 * @return the version, or {@link #ABSENT} if the store doesn't contain
+	 * 		the identifier
+	 */
+	long getVersion(String key) {
+		Entry e = snapshot.entries.get(key);
+		return e!=null?e.sequence:ABSENT;
+	}
+
+	/**
+	 * Encodes a configuration for writing. This can be done without
+	 * holding any locks.
+	 * @param niceName the nice name
+	 * @param description the description
+	 * @param values the configuration data
+	 * @return the encoded configuration
+	 * @throws IOException if the configuration data could not be encoded
+	 */
+	static EncodedConfiguration encode(String niceName, String description, Map<String, Object> values) throws IOException {
+		ConfigurationSnapshot snapshot = ConfigurationSnapshot.of(values);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream os = new DataOutputStream(bytes)) {
+			writeString(os, niceName);
+			writeString(os, description);
+			writeMap(os, snapshot);
+		}
+		return new EncodedConfiguration(niceName, description, snapshot, bytes.toByteArray());
+	}
+
+	/**
+	 * Adds a configuration to the store. If the store already contains
+	 * a configuration with the same identifier, it is replaced.
+	 * @param config the configuration
+	 * @throws IOException if the configuration could not be written
+	 */
+	void put(Configuration config) throws IOException {
+		ConfigurationDetails details = config.getDetails();
+		put(details.getKey(), encode(details.getNiceName(), details.getDescription(), config.getMap()), ANY_VERSION);
+	}
+
+	/**
+	 * Writes a configuration to the store, if the current version of the
+	 * configuration is the expected version.
+	 * @param key the identifier
+	 * @param config the encoded configuration
+	 * @param expectedVersion the expected version, {@link #ABSENT} if the
+	 * 		configuration is expected to be new, or {@link #ANY_VERSION}
+	 * @return true if the configuration was written, false if the version
+	 * 		didn't match
+	 * @throws IOException if the configuration could not be written
+	 */
+	synchronized boolean put(String key, EncodedConfiguration config, long expectedVersion) throws IOException {
+		Entry old = entries.get(key);
+		if (expectedVersion!=ANY_VERSION && expectedVersion!=(old!=null?old.sequence:ABSENT)) {
+			return false;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream os = new DataOutputStream(bytes)) {
+			os.writeByte(PUT);
+			os.writeLong(sequence+1);
+			writeString(os, key);
+			os.write(config.data);
+		}
+		long offset = append(PUT, bytes.toByteArray());
+		ConfigurationDetails details = new ConfigurationDetails.Builder(key)
+				.niceName(config.niceName)
+				.description(config.description)
+				.build();
+		Entry e = new Entry(details, sequence, offset, bytes.size());
+		e.setPayload(config.values);
+		entries.put(key, e);
+		if (old!=null) {
+			liveBytes -= old.size();
+		}
+		liveBytes += e.size();
+		publish();
+		return true;
+	}
+
+	/**
+	 * Removes a configuration from the store.
+	 * @param key the identifier
+	 * @return true if the configuration was removed, false if the store
+	 * 		doesn't contain the identifier
+	 * @throws IOException if the removal could not be written
+	 */
+	synchronized boolean remove(String key) throws IOException {
+		if (!entries.containsKey(key)) {
+			return false;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream os = new DataOutputStream(bytes)) {
+			os.writeByte(REMOVE);
+			os.writeLong(sequence+1);
+			writeString(os, key);
+		}
+		append(REMOVE, bytes.toByteArray());
+		liveBytes -= entries.remove(key).size();
+		publish();
+		return true;
+	}
+
+	/**
+	 * Compacts the journal if the obsolete records make up more than half of
+	 * it and exceed the compaction threshold.
+	 * @return true if the journal was compacted, false otherwise
+	 * @throws IOException if the journal could not be compacted
+	 */
+	synchronized boolean compactIfNeeded() throws IOException {
+		long obsolete = journalSize - JOURNAL_HEADER_SIZE - liveBytes;
+		if (generation>0 && obsolete>=compactionThreshold && obsolete>liveBytes) {
+			compact();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the live records to a new journal and index.
+	 * @throws IOException if the journal could not be compacted
+	 */
+	synchronized void compact() throws IOException {
+		if (generation==0) {
+			return;
+		}
+		long newGeneration = generation + 1;
+		List<Map.Entry<String, Entry>> live = new ArrayList<>(entries.entrySet());
+		live.sort(Comparator.comparingLong(v->v.getValue().sequence));
+		Map<String, Entry> newEntries = new HashMap<>();
+		Path tmpJournal = Files.createTempFile(dir, "configurations-", ".tmp");
+		Path tmpIndex = Files.createTempFile(dir, "configurations-", ".tmp");
+		try {
+			long pos = JOURNAL_HEADER_SIZE;
+			try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ);
+				DataOutputStream jos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpJournal)));
+				DataOutputStream ios = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpIndex)))) {
+				writeJournalHeader(jos, newGeneration, sequence);
+				writeIndexHeader(ios, newGeneration);
+				for (Map.Entry<String, Entry> v : live) {
+					Entry e = v.getValue();
+					ByteBuffer bb = ByteBuffer.allocate((int)e.size());
+					readFully(in, bb, e.offset);
+					jos.write(bb.array());
+					writeIndexRecord(ios, new IndexRecord(e.sequence, pos, e.length, PUT));
+					Entry ne = new Entry(e.details, e.sequence, pos, e.length);
+					ne.payload = e.payload;
+					newEntries.put(v.getKey(), ne);
+					pos += e.size();
+				}
+			}
+			// If the index isn't moved, it's rebuilt from the journal when it's loaded
+			Files.move(tmpJournal, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpIndex, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Compacted " + journal + " from " + journalSize + " to " + pos + " bytes.");
+			}
+			this.entries = newEntries;
+			this.generation = newGeneration;
+			this.journalSize = pos;
+			this.indexSize = INDEX_HEADER_SIZE + (long)live.size()*INDEX_RECORD_SIZE;
+			this.rebuiltIndex = null;
+			publish();
+		} finally {
+			Files.deleteIfExists(tmpJournal);
+			Files.deleteIfExists(tmpIndex);
+		}
+	}
+
+	private long append(byte type, byte[] body) throws IOException {
+		if (generation==0) {
+			create();
+		} else if (rebuiltIndex!=null) {
+			writeIndex(generation, rebuiltIndex);
+			rebuiltIndex = null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+		record.putInt(body.length).putInt((int)crc.getValue()).put(body).flip();
+		long offset = journalSize;
+		try (FileChannel fc = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			writeFully(fc, record, offset);
+			// Remove anything left behind by an interrupted append
+			fc.truncate(offset + RECORD_HEADER_SIZE + body.length);
+		}
+		ByteBuffer ir = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+		ir.putLong(sequence+1).putLong(offset).putInt(body.length).put(type).put(new byte[3]).flip();
+		try (FileChannel fc = FileChannel.open(index, StandardOpenOption.WRITE)) {
+			writeFully(fc, ir, indexSize);
+			fc.truncate(indexSize + INDEX_RECORD_SIZE);
+		}
+		sequence++;
+		journalSize = offset + RECORD_HEADER_SIZE + body.length;
+		indexSize += INDEX_RECORD_SIZE;
+		return offset;
+	}
+
+	private void create() throws IOException {
+		Files.createDirectories(dir);
+		Path tmpJournal = Files.createTempFile(dir, "configurations-", ".tmp");
+		Path tmpIndex = Files.createTempFile(dir, "configurations-", ".tmp");
+		try {
+			try (DataOutputStream os = new DataOutputStream(Files.newOutputStream(tmpJournal))) {
+				writeJournalHeader(os, 1, sequence);
+			}
+			try (DataOutputStream os = new DataOutputStream(Files.newOutputStream(tmpIndex))) {
+				writeIndexHeader(os, 1);
+			}
+			// The store exists once the journal is in place
+			Files.move(tmpIndex, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpJournal, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmpJournal);
+			Files.deleteIfExists(tmpIndex);
+		}
+		generation = 1;
+		journalSize = JOURNAL_HEADER_SIZE;
+		indexSize = INDEX_HEADER_SIZE;
+	}
+
+	private long readGeneration() throws IOException {
+		if (!Files.exists(journal)) {
+			return 0;
+		}
+		try (FileChannel fc = FileChannel.open(journal, StandardOpenOption.READ)) {
+			return readGeneration(fc);
+		}
+	}
+
+	private long readGeneration(FileChannel fc) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(12);
+		readFully(fc, bb, 0);
+		if (bb.getInt(0)!=JOURNAL_MAGIC) {
+			throw new IOException("Not a configurations journal: " + journal);
+		}
+		return bb.getLong(4);
+	}
+
+	private long readIndexGeneration() throws IOException {
+		if (!Files.exists(index)) {
+			return 0;
+		}
+		try (DataInputStream is = new DataInputStream(Files.newInputStream(index))) {
+			return is.readInt()==INDEX_MAGIC?is.readLong():0;
+		} catch (EOFException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads the store from the files. If the files could not be read, the
+	 * previous state is kept.
+	 * @throws IOException if the files could not be read
+	 */
+	private void load() throws IOException {
+		Map<String, Entry> oldEntries = entries;
+		long oldGeneration = generation;
+		long oldSequence = sequence;
+		long oldJournalSize = journalSize;
+		long oldIndexSize = indexSize;
+		long oldLiveBytes = liveBytes;
+		List<IndexRecord> oldRebuiltIndex = rebuiltIndex;
+		reset();
+		if (!Files.exists(journal)) {
+			publish();
+			return;
+		}
+		try (FileChannel fc = FileChannel.open(journal, StandardOpenOption.READ)) {
+			DataInputStream is = new DataInputStream(Channels.newInputStream(fc));
+			if (is.readInt()!=JOURNAL_MAGIC) {
+				throw new IOException("Not a configurations journal: " + journal);
+			}
+			long gen = is.readLong();
+			long seq = is.readLong();
+			long size = fc.size();
+			List<IndexRecord> records = readIndex(gen);
+			List<IndexRecord> rebuilt = null;
+			if (records==null) {
+				// Writing the index requires the lock, so it's written by the next modification
+				records = scanJournal(fc);
+				rebuilt = new ArrayList<>();
+			}
+			long pos = JOURNAL_HEADER_SIZE;
+			for (IndexRecord r : records) {
+				if (r.offset + RECORD_HEADER_SIZE + r.length > size) {
+					// The journal is incomplete, ignore the remaining records
+					break;
+				}
+				apply(fc, r);
+				if (rebuilt!=null) {
+					rebuilt.add(r);
+				}
+				seq = Math.max(seq, r.sequence);
+				pos = r.offset + RECORD_HEADER_SIZE + r.length;
+				indexSize += INDEX_RECORD_SIZE;
+			}
+			this.generation = gen;
+			this.sequence = seq;
+			this.journalSize = pos;
+			this.indexSize += INDEX_HEADER_SIZE;
+			this.rebuiltIndex = rebuilt;
+			publish();
+		} catch (IOException e) {
+			// Readers keep using the previous snapshot
+			this.entries = oldEntries;
+			this.generation = oldGeneration;
+			this.sequence = oldSequence;
+			this.journalSize = oldJournalSize;
+			this.indexSize = oldIndexSize;
+			this.liveBytes = oldLiveBytes;
+			this.rebuiltIndex = oldRebuiltIndex;
+			throw e;
+		}
+	}
+
+	/**
+	 * Applies the index records that have been appended since the store
+	 * was loaded or last caught up.
+	 * @param size the current size of the index
+	 * @throws IOException if the files could not be read
+	 */
+	private void catchUp(long size) throws IOException {
+		int count = (int)((size - indexSize) / INDEX_RECORD_SIZE);
+		if (count==0) {
+			// An index record is being written
+			return;
+		}
+		try (FileChannel ic = FileChannel.open(index, StandardOpenOption.READ);
+			FileChannel jc = FileChannel.open(journal, StandardOpenOption.READ)) {
+			ByteBuffer bb = ByteBuffer.allocate(count*INDEX_RECORD_SIZE);
+			readFully(ic, bb, indexSize);
+			bb.flip();
+			long journalLength = jc.size();
+			for (int i=0; i<count; i++) {
+				IndexRecord r = new IndexRecord(bb.getLong(), bb.getLong(), bb.getInt(), bb.get());
+				bb.position(bb.position()+3);
+				if (r.sequence<=sequence) {
+					throw new IOException("Unexpected sequence number " + r.sequence + " in " + index);
+				}
+				if (r.offset + RECORD_HEADER_SIZE + r.length > journalLength) {
+					// The journal is incomplete, ignore the remaining records
+					break;
+				}
+				apply(jc, r);
+				sequence = r.sequence;
+				journalSize = r.offset + RECORD_HEADER_SIZE + r.length;
+				indexSize += INDEX_RECORD_SIZE;
+			}
+			publish();
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.log(Level.FINE, "Failed to read changes, reloading " + journal, e);
+			}
+			load();
+		}
+	}
+
+	private void apply(FileChannel fc, IndexRecord r) throws IOException {
+		// Only the beginning of the record is read
+		DataInputStream is = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(fc.position(r.offset + RECORD_HEADER_SIZE)), Math.min(r.length, 1024)));
+		if (is.readByte()!=r.type || is.readLong()!=r.sequence) {
+			throw new IOException("Index doesn't match journal: " + journal);
+		}
+		String key = readString(is);
+		if (r.type==PUT) {
+			Entry e = new Entry(readDetails(key, is), r.sequence, r.offset, r.length);
+			Entry old = entries.put(key, e);
+			if (old!=null) {
+				liveBytes -= old.size();
+			}
+			liveBytes += e.size();
+		} else {
+			Entry old = entries.remove(key);
+			if (old!=null) {
+				liveBytes -= old.size();
+			}
+		}
+	}
+
+	/**
+	 * Reads the index.
+	 * @param gen the generation of the journal
+	 * @return the index records, or null if the index is missing or
+	 * 		doesn't belong to the journal
+	 * @throws IOException if the index could not be read
+	 */
+	private List<IndexRecord> readIndex(long gen) throws IOException {
+		if (!Files.exists(index)) {
+			return null;
+		}
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+			if (is.readInt()!=INDEX_MAGIC || is.readLong()!=gen) {
+				return null;
+			}
+			long count = (Files.size(index) - INDEX_HEADER_SIZE) / INDEX_RECORD_SIZE;
+			List<IndexRecord> ret = new ArrayList<>();
+			for (long i=0; i<count; i++) {
+				ret.add(readIndexRecord(is));
+			}
+			return ret;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private List<IndexRecord> scanJournal(FileChannel fc) throws IOException {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Rebuilding index for " + journal);
+		}
+		List<IndexRecord> ret = new ArrayList<>();
+		long size = fc.size();
+		long pos = JOURNAL_HEADER_SIZE;
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		while (pos + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(fc, header, pos);
+			int length = header.getInt(0);
+			if (length<=0 || pos + RECORD_HEADER_SIZE + length > size) {
+				break;
+			}
+			byte[] body;
+			try {
+				body = readRecord(fc, pos, length);
+			} catch (IOException e) {
+				break;
+			}
+			ret.add(new IndexRecord(ByteBuffer.wrap(body, 1, 8).getLong(), pos, length, body[0]));
+			pos += RECORD_HEADER_SIZE + length;
+		}
+		return ret;
+	}
+
+	private void writeIndex(long gen, List<IndexRecord> records) throws IOException {
+		Path tmp = Files.createTempFile(dir, "configurations-", ".tmp");
+		try {
+			try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				writeIndexHeader(os, gen);
+				for (IndexRecord r : records) {
+					writeIndexRecord(os, r);
+				}
+			}
+			Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private byte[] readRecord(FileChannel fc, long offset, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		readFully(fc, bb, offset);
+		if (bb.getInt(0)!=length) {
+			throw new IOException("Unexpected record length at " + offset + " in " + journal);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bb.array(), RECORD_HEADER_SIZE, length);
+		if ((int)crc.getValue()!=bb.getInt(4)) {
+			throw new IOException("Checksum mismatch at " + offset + " in " + journal);
+		}
+		byte[] ret = new byte[length];
+		System.arraycopy(bb.array(), RECORD_HEADER_SIZE, ret, 0, length);
+		return ret;
+	}
+
+	private static void readFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+		long pos = position;
+		while (bb.hasRemaining()) {
+			int read = fc.read(bb, pos);
+			if (read<0) {
+				throw new EOFException();
+			}
+			pos += read;
+		}
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+		long pos = position;
+		while (bb.hasRemaining()) {
+			pos += fc.write(bb, pos);
+		}
+	}
+
+	private static void writeJournalHeader(DataOutputStream os, long gen, long seq) throws IOException {
+		os.writeInt(JOURNAL_MAGIC);
+		os.writeLong(gen);
+		os.writeLong(seq);
+	}
+
+	private static void writeIndexHeader(DataOutputStream os, long gen) throws IOException {
+		os.writeInt(INDEX_MAGIC);
+		os.writeLong(gen);
+	}
+
+	private static void writeIndexRecord(DataOutputStream os, IndexRecord r) throws IOException {
+		os.writeLong(r.sequence);
+		os.writeLong(r.offset);
+		os.writeInt(r.length);
+		os.writeByte(r.type);
+		os.write(new byte[3]);
+	}
+
+	private static IndexRecord readIndexRecord(DataInputStream is) throws IOException {
+		IndexRecord ret = new IndexRecord(is.readLong(), is.readLong(), is.readInt(), is.readByte());
+		is.readFully(new byte[3]);
+		return ret;
+	}
+
+	private static ConfigurationDetails readDetails(String key, DataInputStream is) throws IOException {
+		return new ConfigurationDetails.Builder(key)
+				.niceName(readString(is))
+				.description(readString(is))
+				.build();
+	}
+
+	private static Map<String, Object> readMap(DataInputStream is) throws IOException {
+		int size = is.readInt();
+		Map<String, Object> ret = new LinkedHashMap<>();
+		for (int i=0; i<size; i++) {
+			ret.put(readString(is), readValue(is));
+		}
+		return ret;
+	}
+
+	private static void writeMap(DataOutputStream os, Map<String, Object> map) throws IOException {
+		os.writeInt(map.size());
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			writeString(os, e.getKey());
+			writeValue(os, e.getValue());
+		}
+	}
+
+	private static String readString(DataInputStream is) throws IOException {
+		if (!is.readBoolean()) {
+			return null;
+		}
+		byte[] b = new byte[is.readInt()];
+		is.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream os, String value) throws IOException {
+		os.writeBoolean(value!=null);
+		if (value!=null) {
+			// Not using writeUTF, since it's limited to 64k
+			byte[] b = value.getBytes(StandardCharsets.UTF_8);
+			os.writeInt(b.length);
+			os.write(b);
+		}
+	}
+
+	private static Object readValue(DataInputStream is) throws IOException {
+		byte type = is.readByte();
+		switch (type) {
+			case TYPE_NULL: return null;
+			case TYPE_STRING: return readString(is);
+			case TYPE_INTEGER: return is.readInt();
+			case TYPE_LONG: return is.readLong();
+			case TYPE_DOUBLE: return is.readDouble();
+			case TYPE_BOOLEAN: return is.readBoolean();
+			case TYPE_SERIALIZED:
+			{
+				byte[] b = new byte[is.readInt()];
+				is.readFully(b);
+				try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b))) {
+					return ois.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Failed to deserialize.", e);
+				}
+			}
+			default: throw new IOException("Unknown value type: " + type);
+		}
+	}
+
+	private static void writeValue(DataOutputStream os, Object value) throws IOException {
+		if (value==null) {
+			os.writeByte(TYPE_NULL);
+		} else if (value instanceof String) {
+			os.writeByte(TYPE_STRING);
+			writeString(os, (String)value);
+		} else if (value instanceof Integer) {
+			os.writeByte(TYPE_INTEGER);
+			os.writeInt((Integer)value);
+		} else if (value instanceof Long) {
+			os.writeByte(TYPE_LONG);
+			os.writeLong((Long)value);
+		} else if (value instanceof Double) {
+			os.writeByte(TYPE_DOUBLE);
+			os.writeDouble((Double)value);
+		} else if (value instanceof Boolean) {
+			os.writeByte(TYPE_BOOLEAN);
+			os.writeBoolean((Boolean)value);
+		} else if (value instanceof Serializable) {
+			// Other values are stored using java serialization
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+				oos.writeObject(value);
+			}
+			os.writeByte(TYPE_SERIALIZED);
+			os.writeInt(bytes.size());
+			bytes.writeTo(os);
+		} else {
+			throw new IOException("Unsupported value: " + value);
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.daisy.streamline.api.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides a background thread that refreshes a {@link ConfigurationStore}
+ * when its files are modified. Bursts of changes are collected until the
+ * folder has been quiet for the specified delay, or for at most ten times
+ * the delay, before the store is refreshed.
+ * <p>The refresh doesn't take the cross-process lock. It only reads, and
+ * if the index doesn't match the journal, the index is rebuilt in memory.
+ * If the files are being replaced by another process, the refresh fails
+ * and the store keeps its previous snapshot until the next change.</p>
+ * @author Joel Håkansson
+ */
+final class ConfigurationStoreWatcher implements Closeable {
+	private static final Logger logger = Logger.getLogger(ConfigurationStoreWatcher.class.getCanonicalName());
+	private final ConfigurationStore store;
+	private final Path dir;
+	private final long delay;
+	private final WatchService watcher;
+	private final Thread thread;
+
+	/**
+	 * Creates a new watcher and starts it.
+	 * @param store the store
+	 * @param dir the folder of the store
+	 * @param delay the time to wait for more changes before refreshing
+	 * @throws IOException if the folder could not be watched
+	 */
+	ConfigurationStoreWatcher(ConfigurationStore store, Path dir, Duration delay) throws IOException {
+		this.store = store;
+		this.dir = dir;
+		this.delay = delay.toNanos();
+		this.watcher = FileSystems.getDefault().newWatchService();
+		try {
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			watcher.close();
+			throw e;
+		}
+		this.thread = new Thread(this::run, "configurations-watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				boolean modified = process(watcher.take());
+				long deadline = System.nanoTime() + 10*delay;
+				WatchKey key;
+				while (System.nanoTime()<deadline && (key = watcher.poll(delay, TimeUnit.NANOSECONDS))!=null) {
+					modified |= process(key);
+				}
+				if (modified) {
+					try {
+						store.refresh();
+					} catch (IOException | RuntimeException e) {
+						// Keep watching, the next change may be readable
+						logger.log(Level.WARNING, "Failed to refresh configurations.", e);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Processes the events of a watch key.
+	 * @param key the key
+	 * @return true if the store's files may have been modified, false otherwise
+	 */
+	private boolean process(WatchKey key) {
+		boolean ret = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+				ret = true;
+			} else {
+				String name = event.context().toString();
+				ret |= ConfigurationStore.JOURNAL_FILE_NAME.equals(name) || ConfigurationStore.INDEX_FILE_NAME.equals(name);
+			}
+		}
+		if (!key.reset() && logger.isLoggable(Level.FINE)) {
+			logger.fine("No longer watching " + dir);
+		}
+		return ret;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		thread.interrupt();
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.daisy.streamline.api.config;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -9,7 +10,9 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,23 +32,84 @@ import org.osgi.service.component.annotations.ReferencePolicy;
  * of every provider. If more than one provider contains the same key, the 
  * most recently added will be used, and a debug message will be sent to the log.
  * 
+ * The keys and details of the providers are collected in an index, which is rebuilt
+ * when a provider is added or removed, or when a provider signals that its
+ * configurations have changed (see {@link ConfigurationsProvider#addChangeListener(Runnable)}).
+ * Configurations are returned as immutable snapshots, which are cached according to
+ * the provider's time to live.
+ * 
  * @author Joel Håkansson
  */
 @Component
 public class ConfigurationsCatalog implements ConfigurationsCatalogService {
 	private static final Logger logger = Logger.getLogger(ConfigurationsCatalog.class.getCanonicalName());
-	private final Map<String, ConfigurationsProvider> map;
 	private final List<ConfigurationsProvider> providers;
+	private final Runnable changeListener;
 	private Optional<UserConfigurationsProvider> userConfigurations;
+	// null if the index must be rebuilt
+	private volatile Index index;
+	private final AtomicLong modCount;
+	private final Map<String, CachedConfiguration> cache;
+	// Guards changes to modCount together with index and cache, so that a result
+	// can't be published after an invalidation it missed. Not held while building
+	// the index or reading configurations, since providers may signal changes then.
+	private final Object publishLock = new Object();
+
+	private static final class CachedConfiguration {
+		private final ConfigurationSnapshot snapshot;
+		private final long created;
+		private final long ttl;
+
+		private CachedConfiguration(ConfigurationSnapshot snapshot, Duration ttl) {
+			this.snapshot = snapshot;
+			this.created = System.nanoTime();
+			long nanos;
+			try {
+				nanos = ttl.toNanos();
+			} catch (ArithmeticException e) {
+				nanos = Long.MAX_VALUE;
+			}
+			this.ttl = nanos;
+		}
+
+		private boolean isExpired() {
+			return System.nanoTime() - created >= ttl;
+		}
+	}
+
+	private static final class Index {
+		private final Map<String, ConfigurationsProvider> providers;
+		private final Set<ConfigurationDetails> details;
+
+		private Index(List<ConfigurationsProvider> list) {
+			Map<String, ConfigurationsProvider> map = new HashMap<>();
+			Map<String, ConfigurationDetails> details = new HashMap<>();
+			for (ConfigurationsProvider p : list) {
+				for (ConfigurationDetails d : p.getConfigurationDetails()) {
+					ConfigurationsProvider o = map.put(d.getKey(), p);
+					details.put(d.getKey(), d);
+					if (logger.isLoggable(Level.FINE) && o!=null && o!=p) {
+						logger.fine("Configuration with identifier " + d.getKey() + " in " + o.getClass().getCanonicalName()
+								+ " replaced by configuration in " + p.getClass().getCanonicalName());
+					}
+				}
+			}
+			this.providers = map;
+			this.details = Collections.unmodifiableSet(new HashSet<>(details.values()));
+		}
+	}
 	
 	/**
 	 * Creates a new empty instance. This method is public because it is required by OSGi.
 	 * In an SPI context, use newInstance()
 	 */
 	public ConfigurationsCatalog() {
-		this.map = Collections.synchronizedMap(new HashMap<String, ConfigurationsProvider>());
-		providers = new CopyOnWriteArrayList<>();
+		this.providers = new CopyOnWriteArrayList<>();
+		this.changeListener = this::invalidate;
 		this.userConfigurations = Optional.empty();
+		this.index = null;
+		this.modCount = new AtomicLong();
+		this.cache = new ConcurrentHashMap<>();
 	}
 
 	/**
@@ -86,6 +150,8 @@ public class ConfigurationsCatalog implements ConfigurationsCatalogService {
 			logger.finer("Adding factory: " + factory);
 		}
 		providers.add(factory);
+		factory.addChangeListener(changeListener);
+		invalidate();
 	}
 
 	/**
@@ -97,12 +163,10 @@ public class ConfigurationsCatalog implements ConfigurationsCatalogService {
 		if (logger.isLoggable(Level.FINER)) {
 			logger.finer("Removing factory: " + factory);
 		}
-		// this is to avoid adding items to the cache that were removed while
-		// iterating
-		synchronized (map) {
-			providers.remove(factory);
-			map.clear();
+		if (providers.remove(factory)) {
+			factory.removeChangeListener(changeListener);
 		}
+		invalidate();
 	}
 	
 	/**
@@ -111,7 +175,10 @@ public class ConfigurationsCatalog implements ConfigurationsCatalogService {
 	 */
 	@Reference(cardinality=ReferenceCardinality.OPTIONAL, policy=ReferencePolicy.DYNAMIC)
 	public void setUserConfigurations(UserConfigurationsProvider provider) {
+		userConfigurations.ifPresent(v->v.removeChangeListener(changeListener));
 		this.userConfigurations = Optional.of(provider);
+		provider.addChangeListener(changeListener);
+		invalidate();
 	}
 	
 	/**
@@ -122,63 +189,99 @@ public class ConfigurationsCatalog implements ConfigurationsCatalogService {
 	public void unsetUserConfigurations(UserConfigurationsProvider provider) {
 		if (userConfigurations.isPresent() && userConfigurations.get().equals(provider)) {
 			this.userConfigurations = Optional.empty();
+			provider.removeChangeListener(changeListener);
+			invalidate();
+		}
+	}
+
+	private void invalidate() {
+		synchronized (publishLock) {
+			modCount.incrementAndGet();
+			index = null;
+			cache.clear();
+		}
+	}
+
+	private Index getIndex() {
+		Index ret = index;
+		if (ret==null) {
+			synchronized (this) {
+				ret = index;
+				if (ret==null) {
+					long mc = modCount.get();
+					ret = new Index(providers);
+					// If the index was invalidated while it was being built, it's used
+					// for this call only
+					synchronized (publishLock) {
+						if (mc==modCount.get()) {
+							index = ret;
+						}
+					}
+				}
+			}
 		}
+		return ret;
 	}
 
 	@Override
 	public Set<ConfigurationDetails> getConfigurationDetails() {
-		Set<ConfigurationDetails> keys = new HashSet<>();
-		for (ConfigurationsProvider p : providers) {
-			keys.addAll(p.getConfigurationDetails());
+		Set<ConfigurationDetails> details = getIndex().details;
+		if (!userConfigurations.isPresent()) {
+			return details;
 		}
+		Set<ConfigurationDetails> keys = new HashSet<>(details);
 		userConfigurations.ifPresent(v->keys.addAll(v.getConfigurationDetails()));
 		return keys;
 	}
-	
+
 	private ConfigurationsProvider assertProvider(String identifier) {
 		if (identifier==null) {
 			return null;
 		}
-		ConfigurationsProvider provider = map.get(identifier);
-		if (provider==null) {
-			// this is to avoid adding items to the cache that were removed
-			// while iterating
-			synchronized (map) {
-				for (ConfigurationsProvider p : providers) {
-					for (ConfigurationDetails details : p.getConfigurationDetails()) {
-						if (identifier.equals(details.getKey())) {
-							if (logger.isLoggable(Level.FINE)) {
-								logger.fine("Found a factory for " + identifier + " (" + p.getClass() + ")");
-							}
-							ConfigurationsProvider o = map.put(details.getKey(), p);
-							if (logger.isLoggable(Level.FINE) && o!=null) {
-								logger.fine("Configuration with identifier " + details.getKey() + " in " + o.getClass().getCanonicalName()
-										+ " replaced by configuration in " + p.getClass().getCanonicalName());
-							}
-							provider = p;
-							break;
-						}
-					}
-				}
-			}
-		}
-		return provider;
+		return getIndex().providers.get(identifier);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>The returned map is an unmodifiable snapshot of the configuration. If the
+	 * provider of the configuration specifies a time to live (see
+	 * {@link ConfigurationsProvider#getCacheTimeToLive()}), the same instance
+	 * is returned until it expires or the provider signals a change.</p>
+	 */
 	@Override
 	public Map<String, Object> getConfiguration(String identifier) throws ConfigurationsProviderException {
+		CachedConfiguration cached = identifier==null?null:cache.get(identifier);
+		if (cached!=null && !cached.isExpired()) {
+			return cached.snapshot;
+		}
+		long mc = modCount.get();
+		ConfigurationsProvider source = null;
+		Map<String, Object> c = null;
 		if (userConfigurations.isPresent()) {
-			Map<String, Object> c = userConfigurations.get().getConfiguration(identifier);
-			if (c!=null) {
-				return c;
+			source = userConfigurations.get();
+			c = source.getConfiguration(identifier);
+		}
+		if (c==null) {
+			source = assertProvider(identifier);
+			if (source==null) {
+				throw new ConfigurationsProviderException("Failed to locate resource with identifier: " + identifier);
+			}
+			c = source.getConfiguration(identifier);
+			if (c==null) {
+				return null;
 			}
 		}
-		ConfigurationsProvider provider = assertProvider(identifier);
-		if (provider!=null) {
-			return provider.getConfiguration(identifier);
-		} else {
-			throw new ConfigurationsProviderException("Failed to locate resource with identifier: " + identifier);
+		ConfigurationSnapshot ret = ConfigurationSnapshot.of(c);
+		Duration ttl = source.getCacheTimeToLive();
+		// Don't cache the result if something changed while it was retrieved
+		if (identifier!=null && !ttl.isNegative() && !ttl.isZero()) {
+			synchronized (publishLock) {
+				if (mc==modCount.get()) {
+					cache.put(identifier, new CachedConfiguration(ret, ttl));
+				}
+			}
 		}
+		return ret;
 	}
 	
 	@Override
@@ -193,7 +296,14 @@ public class ConfigurationsCatalog implements ConfigurationsCatalogService {
 	
 	@Override
 	public boolean removeConfiguration(String identifier) {
-		return userConfigurations.map(v->v.removeConfiguration(identifier)).orElse(false);
+		boolean ret = userConfigurations.map(v->v.removeConfiguration(identifier)).orElse(false);
+		if (ret) {
+			synchronized (publishLock) {
+				modCount.incrementAndGet();
+				cache.remove(identifier);
+			}
+		}
+		return ret;
 	}
 
 	@Override
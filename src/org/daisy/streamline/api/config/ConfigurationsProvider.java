@@ -1,5 +1,6 @@
 package org.daisy.streamline.api.config;
 
+import java.time.Duration;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,6 +27,32 @@ public interface ConfigurationsProvider {
 	 */
 	public Map<String, Object> getConfiguration(String key) throws ConfigurationsProviderException;
 
+	/**
+	 * Gets the time that a configuration returned by this provider may be
+	 * cached by the caller. Cached configurations are discarded earlier if the
+	 * provider signals a change, see {@link #addChangeListener(Runnable)}.
+	 * The default implementation returns zero, which means that configurations
+	 * aren't cached.
+	 * @return the time to live
+	 */
+	public default Duration getCacheTimeToLive() {
+		return Duration.ZERO;
+	}
+
+	/**
+	 * Adds a listener that should be called when the configurations available
+	 * in the provider change. The default implementation does nothing, which
+	 * means that the configurations are assumed not to change.
+	 * @param listener the listener
+	 */
+	public default void addChangeListener(Runnable listener) {}
+
+	/**
+	 * Removes a listener previously added with {@link #addChangeListener(Runnable)}.
+	 * @param listener the listener
+	 */
+	public default void removeChangeListener(Runnable listener) {}
+
 	/**
 	 * <p>Informs the implementation that it was discovered and instantiated using
 	 * information collected from a file within the <code>META-INF/services</code> directory.
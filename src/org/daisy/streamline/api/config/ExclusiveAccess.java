@@ -1,5 +1,7 @@
 package org.daisy.streamline.api.config;
 
+import java.time.Duration;
+
 /**
  * Defines inter-process exclusive access signaling. An
  * implementation is required to provide a mechanism that only
@@ -23,6 +25,34 @@ public interface ExclusiveAccess {
 	 */
 	public boolean acquire() throws ExclusiveAccessException;
 	
+	/**
+	 * <p>Acquires exclusive access, waiting up to the specified time for it to
+	 * become available.</p>
+	 * 
+	 * <p>The default implementation retries {@link #acquire()} with a random
+	 * delay of 50-150 ms between attempts, until access is acquired or the timeout
+	 * expires. Implementations that can wait for the access to be released should
+	 * override this method.</p>
+	 * 
+	 * @param timeout the maximum time to wait
+	 * @return returns true if access was acquired, false if the timeout expired
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 * @throws ExclusiveAccessException if access could not be acquired for reasons 
+	 * 			other than that the access is already owned by another instance.
+	 */
+	public default boolean acquire(Duration timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		while (!acquire()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining<=0) {
+				return false;
+			}
+			//Sleep between 50-150 ms
+			Thread.sleep(Math.min(50+(int)(Math.random()*100), Math.max(1, remaining/1000000)));
+		}
+		return true;
+	}
+	
 	/**
 	 * Releases previously acquired access.
 	 */
@@ -0,0 +1,320 @@
+package org.daisy.streamline.api.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Provides an {@link ExclusiveAccess} implementation that uses a file lock. Threads
+ * in the same JVM are coordinated using an in-memory lock before the file is locked,
+ * which means that several instances can be created for the same file. The in-memory
+ * lock is discarded when the file is no longer locked. Access can also
+ * be shared, in which case several readers can hold the access at the same time while
+ * writers are excluded.</p>
+ *
+ * <p>Unlike {@link #acquire()}, {@link #acquire(Duration)} and {@link #acquireShared(Duration)}
+ * wait until access is granted or the timeout expires. Access is handed over as soon as it
+ * is released.</p>
+ *
+ * <p>Access is held by the thread that acquired it and must be released by the same thread.
+ * Exclusive access is reentrant. A thread holding exclusive access can also acquire shared
+ * access, but not the other way around.</p>
+ *
+ * @author Joel Håkansson
+ */
+public final class FileExclusiveAccess implements ExclusiveAccess {
+	private static final Logger logger = Logger.getLogger(FileExclusiveAccess.class.getCanonicalName());
+	// Contains the states that are in use, an entry is removed when its last user releases it
+	private static final ConcurrentMap<Path, LockState> LOCKS = new ConcurrentHashMap<>();
+	private final Path path;
+
+	private static class LockerHolder {
+		// Used for waiting on file locks, since FileChannel.lock doesn't have a timeout
+		private static final ExecutorService LOCKER = Executors.newCachedThreadPool(r->{
+			Thread t = new Thread(r, "exclusive-access");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private static final class LockState {
+		private final Path path;
+		private final ReentrantReadWriteLock access;
+		// Guards the fields below
+		private final ReentrantLock mutex;
+		private FileChannel channel;
+		private int sharedHolders;
+		// Guarded by the map entry, see LOCKS
+		private int users;
+
+		private LockState(Path path) {
+			this.path = path;
+			this.access = new ReentrantReadWriteLock(true);
+			this.mutex = new ReentrantLock();
+			this.channel = null;
+			this.sharedHolders = 0;
+			this.users = 0;
+		}
+
+		private FileChannel open() throws IOException {
+			if (channel==null || !channel.isOpen()) {
+				channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			return channel;
+		}
+
+		private void close() {
+			if (channel!=null) {
+				try {
+					// Closing the channel releases the lock
+					channel.close();
+				} catch (IOException e) {
+					if (logger.isLoggable(Level.FINE)) {
+						logger.log(Level.FINE, "Failed to close " + path, e);
+					}
+				}
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new exclusive access instance using the specified lock file.
+	 * The file is created if it doesn't exist.
+	 * @param lockFile the lock file
+	 * @throws NullPointerException if <code>lockFile</code> is null
+	 */
+	public FileExclusiveAccess(File lockFile) {
+		this.path = lockFile.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Gets the state of the lock file and registers a user of it. Each call
+	 * must be matched by a call to {@link #unuse(LockState)}.
+	 * @return the state
+	 */
+	private LockState use() {
+		return LOCKS.compute(path, (p, v)->{
+			LockState ret = v!=null?v:new LockState(p);
+			ret.users++;
+			return ret;
+		});
+	}
+
+	/**
+	 * Unregisters a user of the state. The state is removed when it
+	 * no longer has any users.
+	 * @param state the state
+	 */
+	private void unuse(LockState state) {
+		LOCKS.computeIfPresent(path, (p, v)->v==state && --v.users==0?null:v);
+	}
+
+	/**
+	 * Returns true if the lock file is in use by this JVM.
+	 * @param lockFile the lock file
+	 * @return true if the file is in use, false otherwise
+	 */
+	static boolean isInUse(File lockFile) {
+		return LOCKS.containsKey(lockFile.toPath().toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Tries to acquire exclusive access without waiting.
+	 */
+	@Override
+	public boolean acquire() throws ExclusiveAccessException {
+		try {
+			return acquire(Duration.ZERO);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Acquires exclusive access, waiting up to the specified time for it to
+	 * become available. Unlike the default implementation, access is handed
+	 * over as soon as it's released.
+	 * @param timeout the maximum time to wait
+	 * @return true if access was acquired, false if the timeout expired
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 * @throws ExclusiveAccessException if the file could not be locked for reasons
+	 * 			other than that it's already locked
+	 */
+	@Override
+	public boolean acquire(Duration timeout) throws InterruptedException {
+		return acquire(false, timeout);
+	}
+
+	/**
+	 * Acquires shared access, waiting up to the specified time for it to
+	 * become available. Shared access excludes exclusive access, but not
+	 * other shared access. Shared access is released using {@link #release()}.
+	 * @param timeout the maximum time to wait
+	 * @return true if access was acquired, false if the timeout expired
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 * @throws ExclusiveAccessException if the file could not be locked for reasons
+	 * 			other than that it's already locked
+	 */
+	public boolean acquireShared(Duration timeout) throws InterruptedException {
+		return acquire(true, timeout);
+	}
+
+	private boolean acquire(boolean shared, Duration timeout) throws InterruptedException {
+		LockState state = use();
+		boolean acquired = false;
+		try {
+			acquired = acquire(state, shared?state.access.readLock():state.access.writeLock(), shared, timeout);
+			return acquired;
+		} finally {
+			if (!acquired) {
+				unuse(state);
+			}
+		}
+	}
+
+	private static boolean acquire(LockState state, Lock lock, boolean shared, Duration timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		if (!(timeout.isZero()?lock.tryLock():lock.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS))) {
+			return false;
+		}
+		if (state.access.getWriteHoldCount()>(shared?0:1)) {
+			// The file is already locked by this thread
+			return true;
+		}
+		boolean locked = false;
+		try {
+			locked = lockFile(state, shared, deadline);
+			return locked;
+		} finally {
+			if (!locked) {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Releases access acquired by the current thread. If the thread holds both
+	 * shared and exclusive access, the shared access is released first.
+	 * @throws IllegalStateException if the current thread doesn't hold access
+	 */
+	@Override
+	public void release() {
+		// Present as long as the current thread holds access
+		LockState state = LOCKS.get(path);
+		ReentrantReadWriteLock access = state!=null?state.access:null;
+		if (access!=null && access.getReadHoldCount()>0) {
+			if (!access.isWriteLockedByCurrentThread()) {
+				unlockFile(state, true);
+			}
+			access.readLock().unlock();
+		} else if (access!=null && access.isWriteLockedByCurrentThread()) {
+			if (access.getWriteHoldCount()==1) {
+				unlockFile(state, false);
+			}
+			access.writeLock().unlock();
+		} else {
+			throw new IllegalStateException("Access to " + path + " isn't held by the current thread.");
+		}
+		unuse(state);
+	}
+
+	private static boolean lockFile(LockState state, boolean shared, long deadline) throws InterruptedException {
+		if (!state.mutex.tryLock(remaining(deadline), TimeUnit.NANOSECONDS)) {
+			return false;
+		}
+		try {
+			if (shared && state.sharedHolders>0) {
+				state.sharedHolders++;
+				return true;
+			}
+			if (lockFile(state.open(), shared, deadline)) {
+				if (shared) {
+					state.sharedHolders = 1;
+				}
+				return true;
+			} else {
+				state.close();
+				return false;
+			}
+		} catch (IOException | OverlappingFileLockException e) {
+			state.close();
+			throw new ExclusiveAccessException("Failed to lock " + state.path, e);
+		} finally {
+			state.mutex.unlock();
+		}
+	}
+
+	private static boolean lockFile(FileChannel fc, boolean shared, long deadline) throws IOException, InterruptedException {
+		if (fc.tryLock(0, Long.MAX_VALUE, shared)!=null) {
+			return true;
+		}
+		long remaining = remaining(deadline);
+		if (remaining<=0) {
+			return false;
+		}
+		Future<FileLock> f = LockerHolder.LOCKER.submit(()->fc.lock(0, Long.MAX_VALUE, shared));
+		try {
+			f.get(remaining, TimeUnit.NANOSECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			// Interrupting the locking thread closes the channel. If the lock
+			// was acquired anyway, it's released when the caller closes the channel.
+			return !f.cancel(true) && isDone(f);
+		} catch (InterruptedException e) {
+			f.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static boolean isDone(Future<FileLock> f) {
+		try {
+			// Doesn't block, the future is done
+			return f.get()!=null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+
+	private static void unlockFile(LockState state, boolean shared) {
+		state.mutex.lock();
+		try {
+			if (shared && --state.sharedHolders>0) {
+				return;
+			}
+			state.sharedHolders = 0;
+			state.close();
+		} finally {
+			state.mutex.unlock();
+		}
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.nanoTime());
+	}
+
+}
@@ -18,6 +18,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+// The catalog format used by previous versions of UserConfigurationsCollection.
+// It's kept in order to import existing catalogs.
 final class Inventory implements Serializable {
 	/**
 	 * 
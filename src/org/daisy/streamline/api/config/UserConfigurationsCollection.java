@@ -1,20 +1,22 @@
 package org.daisy.streamline.api.config;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+
+import org.daisy.streamline.api.config.ConfigurationStore.EncodedConfiguration;
 
 /**
  * <p>Provides a user configuration collection that lets a user add and
@@ -35,18 +37,35 @@ import java.util.stream.Collectors;
  * because of restrictions imposed by the API design guidelines. To solve the problem,
  * the {@link ExclusiveAccess} interface was created (an implementation of this
  * interface would have been too general to be a public part of this API but to useful
- * to keep private).</p>
+ * to keep private). A file based implementation is available in
+ * {@link FileExclusiveAccess}.</p>
+ * 
+ * <p>The configurations are stored in a binary journal with a fixed-size index. Only
+ * the details of the configurations are read when the collection is loaded, the
+ * configuration data is read when requested. Catalogs written by previous versions
+ * of this class are imported automatically.</p>
+ * 
+ * <p>Reading from the collection doesn't block. Modifications are committed
+ * while holding the {@link ExclusiveAccess} lock, but configurations are encoded
+ * before the lock is acquired. Configurations are versioned, which allows
+ * {@link #updateConfiguration(String, Function)} to apply an update optimistically and
+ * only retry if the same configuration was modified concurrently. Changes made by other
+ * processes can be picked up in the background, see {@link #startWatching(Duration)}.</p>
  */
 public final class UserConfigurationsCollection {
 	private static final Logger logger = Logger.getLogger(UserConfigurationsCollection.class.getCanonicalName());
+	// Used by previous versions of this class
 	private static final String MASTER_FILE_NAME = "catalog.ser";
 	private static final String CONFIG_EXT = ".ser";
+	private static final Duration LOCK_TIMEOUT = Duration.ofSeconds(2);
+	private static final int MAX_UPDATE_ATTEMPTS = 10;
 	private final File baseDir;
 	private final ExclusiveAccess lock;
-	private final File catalog;
-
-	private Inventory inventory;
-	private Date sync;
+	private final ConfigurationStore store;
+	private ConfigurationStoreWatcher watcher;
+	private final CompletableFuture<Void> startup;
+	// Guarded by this instance
+	private boolean imported;
 
 	/**
 	 * Creates a new configurations collection. 
@@ -55,41 +74,82 @@ public final class UserConfigurationsCollection {
 	 * @throws NullPointerException if <code>baseDir</code> is null
 	 */
 	public UserConfigurationsCollection(File baseDir, ExclusiveAccess lock) {
-		this.inventory = new Inventory();
-		this.sync = null;
+		this(baseDir, lock, Runnable::run);
+	}
+
+	/**
+	 * <p>Creates a new configurations collection that imports configurations
+	 * using the specified executor. The configurations that were stored the
+	 * last time the collection was modified are available when this constructor
+	 * returns, without waiting for the lock. Catalogs written by previous
+	 * versions of this class, and configuration files placed in the folder, are
+	 * imported by the executor.</p>
+	 * 
+	 * <p>The import is made by the first modification of the collection if it
+	 * hasn't been made by the executor at that point. This means that a modification
+	 * is never replaced by an imported configuration.</p>
+	 * @param baseDir the folder to store the configurations
+	 * @param lock an exclusive lock, see this interface for more information
+	 * @param executor the executor
+	 * @throws NullPointerException if <code>baseDir</code> or <code>executor</code> is null
+	 */
+	public UserConfigurationsCollection(File baseDir, ExclusiveAccess lock, Executor executor) {
+		Objects.requireNonNull(executor);
 		this.baseDir = Objects.requireNonNull(baseDir);
 		baseDir.mkdirs();
 		this.lock = lock;
-		this.catalog = new File(baseDir, MASTER_FILE_NAME);
+		this.store = new ConfigurationStore(baseDir);
+		this.watcher = null;
+		this.imported = false;
 		try {
-			sync(this::cleanupInventory);
+			// Reading doesn't require the lock
+			store.refresh();
 		} catch (IOException e) {
-			Logger.getLogger(UserConfigurationsCollection.class.getCanonicalName()).log(Level.WARNING, "Failed to read custom configurations.", e);
+			if (logger.isLoggable(Level.FINE)) {
+				logger.log(Level.FINE, "Failed to read custom configurations, will retry.", e);
+			}
 		}
+		this.startup = CompletableFuture.runAsync(()->{
+			try {
+				// Imports are made by sync
+				sync(()->null);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to read custom configurations.", e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Gets a future that completes when the import that is started by the
+	 * constructor has completed.
+	 * @return the future
+	 */
+	CompletableFuture<Void> getStartup() {
+		return startup;
 	}
 
 	/**
 	 * Gets configuration details.
-	 * @return the configuration details
+	 * @return an unmodifiable set of configuration details
 	 */
-	public synchronized Set<ConfigurationDetails> getConfigurationDetails() {
-		return inventory.entries().stream()
-				.map(c->c.getConfiguration().orElse(null))
-				.filter(v->v!=null)
-				.map(v->v.getDetails())
-				.collect(Collectors.toSet());
+	public Set<ConfigurationDetails> getConfigurationDetails() {
+		return store.getDetails();
 	}
 
 	/**
 	 * Gets a configuration.
 	 * @param key the configuration key
-	 * @return a map, or null if the key is not found
+	 * @return an unmodifiable map, or null if the key is not found
 	 */
-	public synchronized Map<String, Object> getConfiguration(String key) {
-		return Optional.ofNullable(inventory.get(key))
-				.flatMap(v->v.getConfiguration())
-				.map(v->v.getMap())
-				.orElse(null);
+	public Map<String, Object> getConfiguration(String key) {
+		try {
+			return Optional.ofNullable(store.read(key))
+					.map(v->v.getMap())
+					.orElse(null);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to read configuration: " + key, e);
+			return null;
+		}
 	}
 
 	/**
@@ -99,19 +159,15 @@ public final class UserConfigurationsCollection {
 	 * @param config the configuration details
 	 * @return the identifier for the new configuration, or an empty optional if the configuration could not be added
 	 */
-	public synchronized Optional<String> addConfiguration(String niceName, String description, Map<String, Object> config) {
+	public Optional<String> addConfiguration(String niceName, String description, Map<String, Object> config) {
 		try {
-			if (catalog==null) {
-				throw new FileNotFoundException();
-			}
+			// Encode before acquiring the lock
+			EncodedConfiguration encoded = ConfigurationStore.encode(niceName, description, config);
 			return sync(()-> {
-				ConfigurationDetails p = new ConfigurationDetails.Builder(inventory.nextIdentifier())
-						.niceName(niceName)
-						.description(description).build();
+				String key = store.nextIdentifier();
 				try {
-					InventoryEntry ret = InventoryEntry.create(new Configuration(p, new HashMap<>(config)), newConfigurationFile());
-					inventory.add(ret);
-					return Optional.of(ret.getIdentifier());
+					store.put(key, encoded, ConfigurationStore.ABSENT);
+					return Optional.of(key);
 				} catch (IOException e) {
 					logger.log(Level.WARNING, "Failed to add configuration.", e);
 					return Optional.empty();
@@ -128,39 +184,114 @@ public final class UserConfigurationsCollection {
 	 * @param key the identifier
 	 * @return true if the configuration was successfully removed, false otherwise
 	 */
-	public synchronized boolean removeConfiguration(String key) {
+	public boolean removeConfiguration(String key) {
 		try {
-			if (catalog==null) {
-				throw new FileNotFoundException();
-			}
-			return sync(()->inventory.remove(key)!=null);
+			return sync(()-> {
+				try {
+					return store.remove(key);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to remove configuration.", e);
+					return false;
+				}
+			});
 		} catch (IOException e) {
 			logger.log(Level.WARNING, "Failed to remove configuration.", e);
 			return false;
 		}
 	}
 
+	/**
+	 * <p>Updates the configuration with the specified identifier. The update
+	 * function is applied to the current configuration without holding the lock.
+	 * The result is written only if the configuration hasn't been modified by
+	 * someone else in the meantime. Otherwise, the update function is applied
+	 * again to the modified configuration. This means that the update function
+	 * may be called more than once.</p>
+	 * 
+	 * @param key the identifier
+	 * @param update a function that returns the updated configuration, given an
+	 * 			unmodifiable map with the current configuration
+	 * @return true if the configuration was updated, false otherwise
+	 */
+	public boolean updateConfiguration(String key, Function<Map<String, Object>, Map<String, Object>> update) {
+		try {
+			if (!store.contains(key)) {
+				// It may have been added by someone else, reading doesn't require the lock
+				store.refresh();
+			}
+			for (int i=0; i<MAX_UPDATE_ATTEMPTS; i++) {
+				// Get the version first, a newer configuration just means that the write fails
+				long version = store.getVersion(key);
+				Configuration current = store.read(key);
+				if (current==null) {
+					return false;
+				}
+				EncodedConfiguration encoded = ConfigurationStore.encode(
+						current.getDetails().getNiceName(),
+						current.getDetails().getDescription(),
+						update.apply(current.getMap()));
+				Boolean updated = sync(()-> {
+					try {
+						return store.put(key, encoded, version);
+					} catch (IOException e) {
+						logger.log(Level.WARNING, "Failed to update configuration.", e);
+						return false;
+					}
+				});
+				if (updated==null) {
+					// Interrupted
+					return false;
+				} else if (updated) {
+					return true;
+				} else if (logger.isLoggable(Level.FINE)) {
+					logger.fine("Configuration " + key + " was modified concurrently, retrying.");
+				}
+			}
+			logger.warning("Failed to update configuration " + key + " after " + MAX_UPDATE_ATTEMPTS + " attempts.");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to update configuration.", e);
+		}
+		return false;
+	}
+
 	/**
 	 * Returns true if the provider contains the specified key.
 	 * @param key the key
 	 * @return true if the provider contains the key, false otherwise
 	 */
-	public synchronized boolean containsConfiguration(String key) {
-		return inventory.keys().contains(key);
+	public boolean containsConfiguration(String key) {
+		return store.contains(key);
 	}
-	
-	private File newConfigurationFile() throws IOException {
-		// Note that this file is not a temporary file, 
-		// it's just convenient to use it to create a unique name
-		return File.createTempFile("config-", CONFIG_EXT, baseDir);
+
+	/**
+	 * Starts watching the folder for changes made by other processes. When
+	 * a change is detected, the collection is refreshed in the background.
+	 * Without this, changes made by other processes are read the next time
+	 * this instance modifies the collection.
+	 * @param delay the time to wait for more changes before refreshing
+	 * @throws IOException if the folder could not be watched
+	 */
+	public synchronized void startWatching(Duration delay) throws IOException {
+		if (watcher==null) {
+			watcher = new ConfigurationStoreWatcher(store, baseDir.toPath(), delay);
+		}
 	}
 
-	private synchronized <T> T sync(Supplier<T> func) throws IOException {
-		// Check this early, to avoid reading from a file that didn't exist until it was opened.
-		boolean fileExists = catalog.exists();
-		if (!fileExists && func==null) {
-			return null;
+	/**
+	 * Stops watching the folder for changes. See {@link #startWatching(Duration)}.
+	 */
+	public synchronized void stopWatching() {
+		if (watcher!=null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Failed to stop watching.", e);
+			}
+			watcher = null;
 		}
+	}
+
+	private synchronized <T> T sync(Supplier<T> func) throws IOException {
 		try {
 			acquireLock();
 		} catch (InterruptedException e1) {
@@ -171,31 +302,20 @@ public final class UserConfigurationsCollection {
 		// Note that "exclusive access" is an agreement made with other processes running this code.
 		// Technically, we only have exclusive access to the lock file itself.
 		try {
-			// Read configurations from file
-			if (sync == null || new Date(catalog.lastModified()).after(sync)) {
-				if (fileExists) {
-					inventory = Inventory.read(catalog);
-					sync = new Date(catalog.lastModified());
-				} else {
-					// reset inventory
-					inventory = new Inventory();
-				}
+			// Read changes made by others
+			store.refresh();
+			if (!imported) {
+				imported = true;
+				cleanupInventory();
 			}
-
-			// Update file
-			if (func!=null) {
-				T ret = func.get();
-				try {
-					inventory.write("catalog-", catalog);
-					sync = new Date(catalog.lastModified());
-				} catch (IOException e) {
-					logger.log(Level.WARNING, "Failed to write catalog to file system.", e);
-					throw e;
-				}
-				return ret;
-			} else {
-				return null;
+			T ret = func.get();
+			try {
+				store.compactIfNeeded();
+			} catch (IOException e) {
+				// The journal is still valid, the compaction can be retried later
+				logger.log(Level.WARNING, "Failed to compact configurations.", e);
 			}
+			return ret;
 		} finally {
 			lock.release();
 		}
@@ -207,36 +327,42 @@ public final class UserConfigurationsCollection {
 	 */
 	private boolean cleanupInventory() {
 		boolean modified = false;
-		modified |= removeUnreadable();
-		modified |= recreateMismatching();
+		modified |= importCatalog();
 		modified |= importConfigurations();
 		return modified;
 	}
-	
-	/**
-	 * Removes unreadable configurations from the file system.
-	 * @return true if some configurations were removed, false otherwise
-	 */
-	private boolean removeUnreadable() {
-		List<File> unreadable = inventory.removeUnreadable();
-		unreadable.forEach(v->v.delete());
-		return !unreadable.isEmpty();
-	}
-	
+
 	/**
-	 * Recreates mismatching configurations.
-	 * @return true if some configurations were recreated, false otherwise
+	 * Imports the configurations in a catalog written by a previous version of this
+	 * class, and removes the catalog from the file system.
+	 * @return true if something was imported, false otherwise
 	 */
-	private boolean recreateMismatching() {
-		List<Configuration> mismatching = inventory.removeMismatching();
-		mismatching.forEach(entry->{
-			try {
-				inventory.add(InventoryEntry.create(entry.copyWithIdentifier(inventory.nextIdentifier()), newConfigurationFile()));
-			} catch (IOException e1) {
-				logger.log(Level.WARNING, "Failed to write a configuration.", e1);
+	private boolean importCatalog() {
+		File catalog = new File(baseDir, MASTER_FILE_NAME);
+		if (!catalog.exists()) {
+			return false;
+		}
+		try {
+			Inventory inventory = Inventory.read(catalog);
+			for (InventoryEntry entry : inventory.entries()) {
+				Optional<Configuration> c = entry.getConfiguration();
+				if (c.isPresent()) {
+					Configuration config = c.get();
+					// If the import is repeated, previously imported entries are replaced
+					if (!entry.getIdentifier().equals(config.getDetails().getKey())) {
+						config = config.copyWithIdentifier(store.nextIdentifier());
+					}
+					store.put(config);
+				}
 			}
-		});
-		return !mismatching.isEmpty();
+			// Remove the files when everything has been imported 
+			inventory.entries().forEach(v->v.getPath().delete());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to import catalog: " + catalog, e);
+			return false;
+		}
+		catalog.delete();
+		return true;
 	}
 
 	/**
@@ -244,17 +370,14 @@ public final class UserConfigurationsCollection {
 	 * @return true if something was imported, false otherwise
 	 */
 	private boolean importConfigurations() {
-		// Create a set of files in the inventory
-		Set<File> files = inventory.entries().stream().map(v->v.getPath()).collect(Collectors.toSet());
 		List<File> entriesToImport = Arrays.asList(baseDir.listFiles(f->
 			f.isFile()
-			&& !f.equals(catalog)	// Exclude the master catalog (should it have the same extension as entries)
-			&& f.getName().endsWith(CONFIG_EXT)
-			&& !files.contains(f))	// Exclude files already in the inventory
+			&& !f.getName().equals(MASTER_FILE_NAME)	// Exclude the master catalog (should it have the same extension as entries)
+			&& f.getName().endsWith(CONFIG_EXT))
 		);
 		entriesToImport.forEach(f->{
 			try {
-				inventory.add(InventoryEntry.create(Configuration.read(f).copyWithIdentifier(inventory.nextIdentifier()), newConfigurationFile()));
+				store.put(Configuration.read(f).copyWithIdentifier(store.nextIdentifier()));
 				f.delete();
 			} catch (IOException e) {
 				if (logger.isLoggable(Level.FINE)) {
@@ -266,19 +389,7 @@ public final class UserConfigurationsCollection {
 	}
 	
 	private void acquireLock() throws IOException, InterruptedException {
-		// Acquire lock
-		int i = 0;
-		boolean locked = false;
-		while (!(locked = lock.acquire()) && i<20) {
-			i++;
-			try {
-				//Sleep between 50-150 ms
-				Thread.sleep(50+(int)Math.random()*100);
-			} catch (InterruptedException e) {
-				throw e;
-			}
-		}
-		if (!locked) {
+		if (!lock.acquire(LOCK_TIMEOUT)) {
 			throw new IOException("Failed to acquire lock.");
 		}
 	}
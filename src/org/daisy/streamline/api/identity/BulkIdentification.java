@@ -0,0 +1,245 @@
+package org.daisy.streamline.api.identity;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+
+/**
+ * <p>Provides identification of many files in parallel. Files are
+ * identified using an {@link IdentityProviderService}, which must be thread
+ * safe (as required by that interface).</p>
+ *
+ * <p>The results are returned as a stream in the order in which the
+ * identifications complete, which is not necessarily the order of the input.
+ * Only a bounded number of files are identified ahead of the consumer of the
+ * stream, so very large inputs can be processed without keeping all results
+ * in memory. The returned stream should be closed after use, for example with
+ * a try-with-resources statement. Closing the stream cancels the identifications
+ * that are still pending.</p>
+ *
+ * <p>If the identification of a file fails with an exception, the file is
+ * returned without identification, in the same way as a file that no identifier
+ * recognizes, and the stream continues with the remaining files.</p>
+ *
+ * @author Joel Håkansson
+ */
+public final class BulkIdentification {
+	private static final Logger logger = Logger.getLogger(BulkIdentification.class.getCanonicalName());
+	private final IdentityProviderService identityProvider;
+	private final int parallelism;
+	private final Optional<ExecutorService> executor;
+
+	/**
+	 * Provides a builder for bulk identification.
+	 */
+	public static class Builder {
+		private final IdentityProviderService identityProvider;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private ExecutorService executor = null;
+
+		private Builder(IdentityProviderService identityProvider) {
+			this.identityProvider = Objects.requireNonNull(identityProvider);
+		}
+
+		/**
+		 * Sets the maximum number of files to identify at the same time.
+		 * Defaults to the number of available processors.
+		 * @param value the parallelism
+		 * @return this builder
+		 * @throws IllegalArgumentException if value is less than 1
+		 */
+		public Builder parallelism(int value) {
+			if (value<1) {
+				throw new IllegalArgumentException("Value must be greater than 0: " + value);
+			}
+			this.parallelism = value;
+			return this;
+		}
+
+		/**
+		 * Sets the executor to run identifications on. If no executor is
+		 * set, a new thread pool is created for each call to identify and
+		 * shut down when the returned stream is exhausted or closed. A
+		 * supplied executor is never shut down by this class.
+		 * @param value the executor
+		 * @return this builder
+		 */
+		public Builder executor(ExecutorService value) {
+			this.executor = value;
+			return this;
+		}
+
+		/**
+		 * Builds a new instance based on the current state of this builder.
+		 * @return a new instance
+		 */
+		public BulkIdentification build() {
+			return new BulkIdentification(this);
+		}
+	}
+
+	private BulkIdentification(Builder builder) {
+		this.identityProvider = builder.identityProvider;
+		this.parallelism = builder.parallelism;
+		this.executor = Optional.ofNullable(builder.executor);
+	}
+
+	/**
+	 * Creates a new builder with the specified identity provider.
+	 * @param identityProvider the identity provider
+	 * @return a new builder
+	 * @throws NullPointerException if identity provider is null
+	 */
+	public static Builder with(IdentityProviderService identityProvider) {
+		return new Builder(identityProvider);
+	}
+
+	/**
+	 * Identifies all regular files in the specified directory and its sub directories.
+	 * @param dir the directory
+	 * @return a stream of identified files, in order of completion
+	 * @throws IOException if the directory cannot be read
+	 */
+	public Stream<AnnotatedFile> identify(Path dir) throws IOException {
+		Stream<Path> files = Files.walk(dir).filter(Files::isRegularFile);
+		return identify(files).onClose(files::close);
+	}
+
+	/**
+	 * Identifies the specified files.
+	 * @param files the files to identify
+	 * @return a stream of identified files, in order of completion
+	 */
+	public Stream<AnnotatedFile> identify(Stream<Path> files) {
+		ExecutorService exec = executor.orElseGet(()->Executors.newFixedThreadPool(parallelism, r->{
+			Thread t = new Thread(r, "identification");
+			t.setDaemon(true);
+			return t;
+		}));
+		ResultIterator it = new ResultIterator(files.iterator(), new ExecutorCompletionService<>(exec), parallelism * 2,
+				executor.isPresent()?null:exec);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.NONNULL), false)
+				.onClose(it::close);
+	}
+
+	private final class ResultIterator implements Iterator<AnnotatedFile> {
+		private final Iterator<Path> input;
+		private final CompletionService<AnnotatedFile> cs;
+		private final int maxPending;
+		// the executor to shut down when done, or null
+		private final ExecutorService owned;
+		// the identifications that haven't been returned yet, and their files
+		// (guarded by this, since the stream can be closed while waiting for a result)
+		private final Map<Future<AnnotatedFile>, Path> pending;
+		private boolean closed;
+
+		private ResultIterator(Iterator<Path> input, CompletionService<AnnotatedFile> cs, int maxPending, ExecutorService owned) {
+			this.input = input;
+			this.cs = cs;
+			this.maxPending = maxPending;
+			this.owned = owned;
+			this.pending = new HashMap<>();
+			this.closed = false;
+		}
+
+		private synchronized void submit() {
+			while (!closed && pending.size()<maxPending && input.hasNext()) {
+				Path p = input.next();
+				pending.put(cs.submit(()->identityProvider.identify(p.toFile())), p);
+			}
+		}
+
+		@Override
+		public synchronized boolean hasNext() {
+			if (closed) {
+				return false;
+			}
+			submit();
+			if (pending.isEmpty()) {
+				close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public AnnotatedFile next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Future<AnnotatedFile> f;
+			try {
+				// Cancelled identifications may never be queued, so check if the stream was closed while waiting
+				while ((f = cs.poll(100, TimeUnit.MILLISECONDS))==null) {
+					synchronized (this) {
+						if (closed) {
+							throw new CancellationException("The stream was closed.");
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				CancellationException ex = new CancellationException("Interrupted while waiting for identification.");
+				ex.initCause(e);
+				throw ex;
+			}
+			Path p;
+			synchronized (this) {
+				if (closed) {
+					throw new CancellationException("The stream was closed.");
+				}
+				p = pending.remove(f);
+			}
+			try {
+				return f.get();
+			} catch (InterruptedException e) {
+				// Not possible, the future is done
+				Thread.currentThread().interrupt();
+				return DefaultAnnotatedFile.create(p);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Error) {
+					throw (Error)e.getCause();
+				}
+				logger.log(Level.WARNING, "Failed to identify " + p, e.getCause());
+				return DefaultAnnotatedFile.create(p);
+			}
+		}
+
+		private synchronized void close() {
+			if (!closed) {
+				closed = true;
+				// A supplied executor isn't shut down, so cancel the identifications one by one
+				pending.keySet().forEach(f->f.cancel(true));
+				pending.clear();
+				if (owned!=null) {
+					owned.shutdownNow();
+				}
+			}
+		}
+	}
+
+}
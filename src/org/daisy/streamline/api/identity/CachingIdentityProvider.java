@@ -0,0 +1,433 @@
+package org.daisy.streamline.api.identity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.AnnotatedInputStream;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+import org.daisy.streamline.api.media.DefaultFileDetails;
+import org.daisy.streamline.api.media.FileDetails;
+import org.daisy.streamline.api.media.InputStreamSupplier;
+
+/**
+ * <p>Provides an identity provider that caches the results of another
+ * identity provider. Files are identified by their canonical path, size
+ * and modification time and, optionally, a hash of their contents. If a file
+ * is found in the cache, the cached details are returned without consulting
+ * the underlying identity provider.</p>
+ *
+ * <p>The cache is bounded, the least recently used entries are evicted first.
+ * If a storage location is specified, the cache is read from it when the
+ * instance is built and written to it when {@link #save()} or {@link #close()}
+ * is called. Entries with properties that cannot be stored (values other than
+ * strings, numbers and booleans) are kept in memory only.</p>
+ *
+ * <p>Sources identified with {@link #identify(InputStreamSupplier)} are
+ * not cached.</p>
+ *
+ * @author Joel Håkansson
+ */
+public final class CachingIdentityProvider implements IdentityProviderService, Closeable {
+	private static final Logger logger = Logger.getLogger(CachingIdentityProvider.class.getCanonicalName());
+	private static final int MAGIC = 0x49444332; // IDC2
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final byte TYPE_STRING = 0;
+	private static final byte TYPE_INTEGER = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_DOUBLE = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+	private final IdentityProviderService identityProvider;
+	private final Optional<Path> storage;
+	private final boolean contentHash;
+	private final Map<String, CacheEntry> cache;
+	private boolean modified;
+	// Serializes writes to the storage location
+	private final Object saveLock = new Object();
+
+	/**
+	 * Provides a builder for caching identity providers.
+	 */
+	public static class Builder {
+		private final IdentityProviderService identityProvider;
+		private Path storage = null;
+		private boolean contentHash = false;
+		private int maxEntries = 10000;
+
+		private Builder(IdentityProviderService identityProvider) {
+			this.identityProvider = Objects.requireNonNull(identityProvider);
+		}
+
+		/**
+		 * Sets the file used to persist the cache. If the file
+		 * exists, the cache is initialized with its contents.
+		 * @param value the file
+		 * @return this builder
+		 */
+		public Builder storage(Path value) {
+			this.storage = value;
+			return this;
+		}
+
+		/**
+		 * Sets whether or not a hash of the file contents should be
+		 * used, in addition to the file size and modification time, to
+		 * determine if a cached entry is still valid. Default is false.
+		 * @param value true if the contents should be hashed, false otherwise
+		 * @return this builder
+		 */
+		public Builder contentHash(boolean value) {
+			this.contentHash = value;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of entries in the cache. Default is 10000.
+		 * @param value the maximum number of entries
+		 * @return this builder
+		 * @throws IllegalArgumentException if value is less than 1
+		 */
+		public Builder maxEntries(int value) {
+			if (value<1) {
+				throw new IllegalArgumentException("Value must be greater than 0: " + value);
+			}
+			this.maxEntries = value;
+			return this;
+		}
+
+		/**
+		 * Builds a new caching identity provider based on the current
+		 * state of this builder.
+		 * @return a new caching identity provider
+		 */
+		public CachingIdentityProvider build() {
+			return new CachingIdentityProvider(this);
+		}
+	}
+
+	private static final class CacheEntry {
+		private final long size;
+		private final long modified;
+		private final byte[] hash;
+		private final FileDetails details;
+
+		private CacheEntry(long size, long modified, byte[] hash, FileDetails details) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.details = details;
+		}
+	}
+
+	private CachingIdentityProvider(Builder builder) {
+		this.identityProvider = builder.identityProvider;
+		this.storage = Optional.ofNullable(builder.storage);
+		this.contentHash = builder.contentHash;
+		final int maxEntries = builder.maxEntries;
+		this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size()>maxEntries;
+			}
+		};
+		this.modified = false;
+		storage.ifPresent(v->{
+			try {
+				read(v);
+			} catch (NoSuchFileException e) {
+				// no action needed
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to read identification cache: " + v, e);
+			}
+		});
+	}
+
+	/**
+	 * Creates a new builder for a caching identity provider.
+	 * @param identityProvider the identity provider to use when
+	 * 			a file is not in the cache
+	 * @return a new builder
+	 * @throws NullPointerException if identity provider is null
+	 */
+	public static Builder with(IdentityProviderService identityProvider) {
+		return new Builder(identityProvider);
+	}
+
+	@Override
+	public AnnotatedFile identify(File in) {
+		String key;
+		long size;
+		long mod;
+		byte[] hash;
+		try {
+			key = in.getCanonicalPath();
+			size = in.length();
+			mod = in.lastModified();
+			hash = contentHash?hash(in):null;
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.log(Level.FINE, "Cannot cache identification of " + in, e);
+			}
+			return identityProvider.identify(in);
+		}
+		CacheEntry entry;
+		synchronized (cache) {
+			entry = cache.get(key);
+		}
+		if (entry!=null && entry.size==size && entry.modified==mod && Arrays.equals(entry.hash, hash)) {
+			return DefaultAnnotatedFile.with(in.toPath())
+					.formatName(entry.details.getFormatName())
+					.extension(entry.details.getExtension())
+					.mediaType(entry.details.getMediaType())
+					.properties(entry.details.getProperties())
+					.build();
+		}
+		AnnotatedFile ret = identityProvider.identify(in);
+		synchronized (cache) {
+			cache.put(key, new CacheEntry(size, mod, hash, DefaultFileDetails.with(ret).build()));
+			modified = true;
+		}
+		return ret;
+	}
+
+	@Override
+	public AnnotatedInputStream identify(InputStreamSupplier in) {
+		return identityProvider.identify(in);
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+			modified = true;
+		}
+	}
+
+	/**
+	 * Gets the number of entries in the cache.
+	 * @return the number of entries
+	 */
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Writes the cache to the storage location, if the cache has been modified
+	 * since it was last read or written. If no storage location was specified,
+	 * this method does nothing.
+	 * @throws IOException if the cache could not be written
+	 */
+	public void save() throws IOException {
+		if (!storage.isPresent()) {
+			return;
+		}
+		synchronized (saveLock) {
+			Map<String, CacheEntry> entries;
+			synchronized (cache) {
+				if (!modified) {
+					return;
+				}
+				entries = new LinkedHashMap<>();
+				cache.forEach((k, v)->{
+					if (isStorable(v.details.getProperties())) {
+						entries.put(k, v);
+					}
+				});
+				modified = false;
+			}
+			// Identification isn't blocked while writing
+			boolean written = false;
+			try {
+				write(storage.get(), entries);
+				written = true;
+			} finally {
+				if (!written) {
+					synchronized (cache) {
+						modified = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Saves the cache, see {@link #save()}.
+	 */
+	@Override
+	public void close() throws IOException {
+		save();
+	}
+
+	private static byte[] hash(File f) throws IOException {
+		try (InputStream is = Files.newInputStream(f.toPath())) {
+			MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+			byte[] b = new byte[8192];
+			int len;
+			while ((len = is.read(b))>-1) {
+				md.update(b, 0, len);
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void read(Path f) throws IOException {
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
+			if (is.readInt()!=MAGIC) {
+				throw new IOException("Not an identification cache: " + f);
+			}
+			int count = is.readInt();
+			for (int i=0; i<count; i++) {
+				String key = readText(is);
+				long size = is.readLong();
+				long mod = is.readLong();
+				byte[] hash = null;
+				int hashLength = is.readShort();
+				if (hashLength>-1) {
+					hash = new byte[hashLength];
+					is.readFully(hash);
+				}
+				DefaultFileDetails.Builder details = new DefaultFileDetails.Builder()
+						.formatName(readString(is))
+						.extension(readString(is))
+						.mediaType(readString(is));
+				int props = is.readShort();
+				for (int j=0; j<props; j++) {
+					details.property(readText(is), readValue(is));
+				}
+				cache.put(key, new CacheEntry(size, mod, hash, details.build()));
+			}
+		}
+	}
+
+	private static void write(Path f, Map<String, CacheEntry> entries) throws IOException {
+		Path tmp = Files.createTempFile(f.toAbsolutePath().getParent(), "identity-", ".tmp");
+		try {
+			try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				os.writeInt(MAGIC);
+				os.writeInt(entries.size());
+				for (Map.Entry<String, CacheEntry> e : entries.entrySet()) {
+					CacheEntry v = e.getValue();
+					writeText(os, e.getKey());
+					os.writeLong(v.size);
+					os.writeLong(v.modified);
+					if (v.hash==null) {
+						os.writeShort(-1);
+					} else {
+						os.writeShort(v.hash.length);
+						os.write(v.hash);
+					}
+					writeString(os, v.details.getFormatName());
+					writeString(os, v.details.getExtension());
+					writeString(os, v.details.getMediaType());
+					Map<String, Object> props = new HashMap<>(v.details.getProperties());
+					os.writeShort(props.size());
+					for (Map.Entry<String, Object> p : props.entrySet()) {
+						writeText(os, p.getKey());
+						writeValue(os, p.getValue());
+					}
+				}
+			}
+			Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static boolean isStorable(Map<String, Object> props) {
+		return props.size()<=Short.MAX_VALUE && props.values().stream().allMatch(v->
+			v instanceof String || v instanceof Integer || v instanceof Long
+			|| v instanceof Double || v instanceof Boolean
+		);
+	}
+
+	private static String readString(DataInputStream is) throws IOException {
+		return is.readBoolean()?readText(is):null;
+	}
+
+	private static void writeString(DataOutputStream os, String value) throws IOException {
+		os.writeBoolean(value!=null);
+		if (value!=null) {
+			writeText(os, value);
+		}
+	}
+
+	private static String readText(DataInputStream is) throws IOException {
+		int len = is.readInt();
+		if (len<0) {
+			throw new IOException("Invalid string length: " + len);
+		}
+		byte[] b = new byte[len];
+		is.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeText(DataOutputStream os, String value) throws IOException {
+		// Not using writeUTF, since it's limited to 64k
+		byte[] b = value.getBytes(StandardCharsets.UTF_8);
+		os.writeInt(b.length);
+		os.write(b);
+	}
+
+	private static Object readValue(DataInputStream is) throws IOException {
+		byte type = is.readByte();
+		switch (type) {
+			case TYPE_STRING: return readText(is);
+			case TYPE_INTEGER: return is.readInt();
+			case TYPE_LONG: return is.readLong();
+			case TYPE_DOUBLE: return is.readDouble();
+			case TYPE_BOOLEAN: return is.readBoolean();
+			default: throw new IOException("Unknown value type: " + type);
+		}
+	}
+
+	private static void writeValue(DataOutputStream os, Object value) throws IOException {
+		if (value instanceof String) {
+			os.writeByte(TYPE_STRING);
+			writeText(os, (String)value);
+		} else if (value instanceof Integer) {
+			os.writeByte(TYPE_INTEGER);
+			os.writeInt((Integer)value);
+		} else if (value instanceof Long) {
+			os.writeByte(TYPE_LONG);
+			os.writeLong((Long)value);
+		} else if (value instanceof Double) {
+			os.writeByte(TYPE_DOUBLE);
+			os.writeDouble((Double)value);
+		} else if (value instanceof Boolean) {
+			os.writeByte(TYPE_BOOLEAN);
+			os.writeBoolean((Boolean)value);
+		} else {
+			throw new IOException("Unsupported value: " + value);
+		}
+	}
+
+}
@@ -1,5 +1,9 @@
 package org.daisy.streamline.api.identity;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+
 import org.daisy.streamline.api.media.FileDetails;
 
 /**
@@ -25,6 +29,54 @@ public interface IdentifierFactory {
 	 */
 	public boolean accepts(FileDetails type);
 	
+	/**
+	 * <p>Gets the confidence of a successful identification of the specified
+	 * details by an identifier created by this factory, from 0 (none) to 1
+	 * (certain). Similar to {@link #accepts(FileDetails)}, this method is
+	 * called before the identification is performed.</p>
+	 * 
+	 * <p>Identification stops once the confidence of the result reaches the
+	 * threshold of the identity provider. A factory that declares a lower confidence
+	 * than that of the current result is still consulted, since it may refine the
+	 * result. An empty optional (the default) means that the confidence is unknown,
+	 * in which case the result keeps the confidence it had, if any.</p>
+	 * 
+	 * @param type the media type
+	 * @return the confidence, or an empty optional if unknown
+	 */
+	public default Optional<Double> getConfidence(FileDetails type) {
+		return Optional.empty();
+	}
+	
+	/**
+	 * <p>Lists the file extensions (without the leading '.') that this factory
+	 * can enhance upon. The list is used to select candidate factories before
+	 * {@link #accepts(FileDetails)} is called.</p>
+	 * 
+	 * <p>If this method and {@link #listMediaTypes()} both return an empty
+	 * collection, the factory is a candidate for all inputs. Otherwise, it is
+	 * only a candidate if the extension or the media type of the input
+	 * matches one of the declared values.</p>
+	 * 
+	 * @return a collection of file extensions, or an empty collection
+	 */
+	public default Collection<String> listFileExtensions() {
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * <p>Lists the media types that this factory can enhance upon. The list
+	 * is used to select candidate factories before {@link #accepts(FileDetails)}
+	 * is called. Media type parameters are ignored when matching.</p>
+	 * 
+	 * <p>See {@link #listFileExtensions()} for more information.</p>
+	 * 
+	 * @return a collection of media types, or an empty collection
+	 */
+	public default Collection<String> listMediaTypes() {
+		return Collections.emptyList();
+	}
+	
 	/**
 	 * <p>Informs the implementation that it was discovered and instantiated using
 	 * information collected from a file within the <code>META-INF/services</code> directory.
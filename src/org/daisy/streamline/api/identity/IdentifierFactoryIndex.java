@@ -0,0 +1,129 @@
+package org.daisy.streamline.api.identity;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.daisy.streamline.api.media.FileDetails;
+
+/**
+ * Provides an immutable index of identifier factories, bucketed by the
+ * file extensions and media types that they declare. Factories are
+ * referred to by their position in the index, which corresponds to the
+ * order in which they were added.
+ *
+ * @author Joel Håkansson
+ */
+final class IdentifierFactoryIndex {
+	private static final IdentifierFactoryIndex EMPTY = new IdentifierFactoryIndex(Collections.emptyList());
+	private final List<IdentifierFactory> factories;
+	private final Map<String, BitSet> extensions;
+	private final Map<String, BitSet> mediaTypes;
+	private final BitSet generic;
+
+	private IdentifierFactoryIndex(List<IdentifierFactory> factories) {
+		this.factories = Collections.unmodifiableList(new ArrayList<>(factories));
+		this.extensions = new HashMap<>();
+		this.mediaTypes = new HashMap<>();
+		this.generic = new BitSet();
+		for (int i=0; i<this.factories.size(); i++) {
+			IdentifierFactory f = this.factories.get(i);
+			Collection<String> exts = f.listFileExtensions();
+			Collection<String> types = f.listMediaTypes();
+			if (exts.isEmpty() && types.isEmpty()) {
+				generic.set(i);
+			} else {
+				for (String ext : exts) {
+					add(extensions, normalizeExtension(ext), i);
+				}
+				for (String type : types) {
+					add(mediaTypes, normalizeMediaType(type), i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets an empty index.
+	 * @return an empty index
+	 */
+	static IdentifierFactoryIndex empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Creates a new index with the factories in the specified order.
+	 * @param factories the factories
+	 * @return a new index
+	 */
+	static IdentifierFactoryIndex with(List<IdentifierFactory> factories) {
+		return factories.isEmpty()?EMPTY:new IdentifierFactoryIndex(factories);
+	}
+
+	private static void add(Map<String, BitSet> map, String key, int i) {
+		if (key!=null) {
+			map.computeIfAbsent(key, k->new BitSet()).set(i);
+		}
+	}
+
+	private static String normalizeExtension(String ext) {
+		if (ext==null) {
+			return null;
+		}
+		String ret = ext.startsWith(".")?ext.substring(1):ext;
+		return ret.toLowerCase(Locale.ROOT);
+	}
+
+	private static String normalizeMediaType(String type) {
+		if (type==null) {
+			return null;
+		}
+		int inx = type.indexOf(';');
+		String ret = inx>-1?type.substring(0, inx):type;
+		return ret.trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Gets the number of factories in this index.
+	 * @return the number of factories
+	 */
+	int size() {
+		return factories.size();
+	}
+
+	/**
+	 * Gets the factory at the specified position.
+	 * @param i the position
+	 * @return the factory
+	 */
+	IdentifierFactory get(int i) {
+		return factories.get(i);
+	}
+
+	/**
+	 * Gets the positions of the factories that are candidates for the specified
+	 * details. The returned set is a new instance that the caller may modify.
+	 * @param details the details, or null
+	 * @return the positions of the candidate factories
+	 */
+	BitSet candidates(FileDetails details) {
+		BitSet ret = (BitSet)generic.clone();
+		if (details!=null) {
+			BitSet ext = extensions.get(normalizeExtension(details.getExtension()));
+			if (ext!=null) {
+				ret.or(ext);
+			}
+			BitSet type = mediaTypes.get(normalizeMediaType(details.getMediaType()));
+			if (type!=null) {
+				ret.or(type);
+			}
+		}
+		return ret;
+	}
+
+}
@@ -1,10 +1,14 @@
 package org.daisy.streamline.api.identity;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.ServiceLoader;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,27 +16,69 @@ import org.daisy.streamline.api.media.AnnotatedFile;
 import org.daisy.streamline.api.media.AnnotatedInputStream;
 import org.daisy.streamline.api.media.DefaultAnnotatedFile;
 import org.daisy.streamline.api.media.DefaultAnnotatedInputStream;
+import org.daisy.streamline.api.media.DefaultFileDetails;
+import org.daisy.streamline.api.media.FileDetails;
 import org.daisy.streamline.api.media.InputStreamSupplier;
+import org.daisy.streamline.api.media.ReplayableInputStreamSupplier;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 
 /**
- * Provides file identification based on its contents.
+ * <p>Provides file identification based on its contents.</p>
+ * 
+ * <p>If an identifier factory declares a confidence (see
+ * {@link IdentifierFactory#getConfidence(FileDetails)}), the confidence
+ * of a successful identification is added to the result as a property with
+ * the key {@link #CONFIDENCE_PROPERTY}. Identification stops when the confidence
+ * of the result reaches the confidence threshold. Until then, factories are consulted
+ * regardless of the confidence they declare, since a factory with a lower confidence
+ * may refine the result, for example by identifying a specific XML format in a file
+ * identified as XML.</p>
+ * 
+ * <p>In an OSGi context, the threshold is set using the component property
+ * {@link #CONFIDENCE_THRESHOLD_PROPERTY}.</p>
  * 
  * @author Joel Håkansson
  */
 @Component
 public class IdentityProvider implements IdentityProviderService {
+	/**
+	 * The property key for the confidence of an identification result.
+	 */
+	public static final String CONFIDENCE_PROPERTY = "identification-confidence";
+	/**
+	 * The component property for the confidence threshold.
+	 */
+	public static final String CONFIDENCE_THRESHOLD_PROPERTY = "confidence-threshold";
 	private final List<IdentifierFactory> filters;
+	private volatile double confidenceThreshold;
+	private volatile IdentifierFactoryIndex index;
 	private static final Logger logger = Logger.getLogger(IdentityProvider.class.getCanonicalName());
 	
+	@FunctionalInterface
+	private interface IdentifierFunction<T> {
+		T apply(Identifier identifier, T input) throws IdentificationFailedException;
+	}
+	
 	/**
 	 * Creates a new empty identity provider.
 	 */
 	public IdentityProvider() {
-		this.filters = new CopyOnWriteArrayList<>();
+		this(Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Creates a new empty identity provider with the specified confidence threshold.
+	 * When the confidence of a result reaches the threshold, identification stops.
+	 * @param confidenceThreshold the confidence threshold
+	 */
+	public IdentityProvider(double confidenceThreshold) {
+		this.filters = new ArrayList<>();
+		this.confidenceThreshold = confidenceThreshold;
+		this.index = IdentifierFactoryIndex.empty();
 	}
 	
 	/**
@@ -58,6 +104,47 @@ public class IdentityProvider implements IdentityProviderService {
 		return ret;
 	}
 	
+	/**
+	 * <p>
+	 * Creates a new IdentityProviderService with the specified confidence
+	 * threshold and populates it using the SPI (java service provider interface).
+	 * </p>
+	 * 
+	 * <p>
+	 * In an OSGi context, an instance should be retrieved using the service
+	 * registry. It will be registered under the IdentityProviderService
+	 * interface.
+	 * </p>
+	 * 
+	 * @param confidenceThreshold the confidence threshold
+	 * @return returns a new IdentityProviderService
+	 */
+	public static final IdentityProviderService newInstance(double confidenceThreshold) {
+		IdentityProvider ret = new IdentityProvider(confidenceThreshold);
+		for (IdentifierFactory factory : ServiceLoader.load(IdentifierFactory.class)) {
+			factory.setCreatedWithSPI();
+			ret.addFactory(factory);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Activates this component (intended for use by the OSGi framework). The
+	 * confidence threshold is read from the property {@link #CONFIDENCE_THRESHOLD_PROPERTY},
+	 * if present.
+	 * @param properties the component properties
+	 * @throws NumberFormatException if the threshold isn't a number
+	 */
+	@Activate
+	public void activate(Map<String, ?> properties) {
+		Object value = properties.get(CONFIDENCE_THRESHOLD_PROPERTY);
+		if (value instanceof Number) {
+			confidenceThreshold = ((Number)value).doubleValue();
+		} else if (value!=null) {
+			confidenceThreshold = Double.parseDouble(value.toString());
+		}
+	}
+	
 	/**
 	 * Adds a factory (intended for use by the OSGi framework)
 	 * @param factory the factory to add
@@ -67,7 +154,10 @@ public class IdentityProvider implements IdentityProviderService {
 		if (logger.isLoggable(Level.FINER)) {
 			logger.finer("Adding factory: " + factory);
 		}
-		filters.add(factory);
+		synchronized (filters) {
+			filters.add(factory);
+			index = IdentifierFactoryIndex.with(filters);
+		}
 	}
 
 	/**
@@ -79,79 +169,87 @@ public class IdentityProvider implements IdentityProviderService {
 		if (logger.isLoggable(Level.FINER)) {
 			logger.finer("Removing factory: " + factory);
 		}
-		filters.remove(factory);
+		synchronized (filters) {
+			filters.remove(factory);
+			index = IdentifierFactoryIndex.with(filters);
+		}
 	}
 
 	@Override
 	public AnnotatedFile identify(File in) {
-		AnnotatedFile f = DefaultAnnotatedFile.create(in.toPath());
-
-		// get a list of factories
-		List<IdentifierFactory> factories = new ArrayList<>(filters);		
-		while (!factories.isEmpty()) {
-			try {
-				f = identify(f, factories);
-			} catch (IdentificationFailedException e) {
-				if (logger.isLoggable(Level.FINE)) {
-					logger.log(Level.FINE, "No matching identifier factories.", e);
-				}
-				break;
-			}
-		}
-		return f;
+		return this.<AnnotatedFile>identify(DefaultAnnotatedFile.create(in.toPath()),
+				(id, f)->id.identify(f),
+				(f, confidence)->DefaultAnnotatedFile.with(f).property(CONFIDENCE_PROPERTY, confidence).build());
 	}
 	
 	@Override
 	public AnnotatedInputStream identify(InputStreamSupplier in) {
-		AnnotatedInputStream stream = DefaultAnnotatedInputStream.create(in);
-
-		// get a list of factories
-		List<IdentifierFactory> factories = new ArrayList<>(filters);
-		while (!factories.isEmpty()) {
-			try {
-				stream = identify(stream, factories);
-			} catch (IdentificationFailedException e) {
-				if (logger.isLoggable(Level.FINE)) {
-					logger.log(Level.FINE, "No matching identifier factories.", e);
-				}
-				break;
+		// Read the start of the source once, rather than once per identifier
+		ReplayableInputStreamSupplier source = ReplayableInputStreamSupplier.create(in);
+		AnnotatedInputStream stream = this.<AnnotatedInputStream>identify(DefaultAnnotatedInputStream.create(source),
+				(id, s)->id.identify(s),
+				(s, confidence)->new DefaultAnnotatedInputStream.Builder(s)
+					.details(DefaultFileDetails.with(s).property(CONFIDENCE_PROPERTY, confidence).build())
+					.build());
+		try {
+			source.close();
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.log(Level.FINE, "Failed to close source.", e);
 			}
 		}
-		return stream;
+		if (source==in) {
+			return stream;
+		}
+		// Return the details over the original source, so that the buffer can be released
+		return new DefaultAnnotatedInputStream.Builder(in)
+				.details(DefaultFileDetails.with(stream).build())
+				.build();
 	}
 
-	private AnnotatedFile identify(AnnotatedFile f, List<IdentifierFactory> factories) throws IdentificationFailedException {
-		IdentificationFailedException ex = new IdentificationFailedException();
-		for (IdentifierFactory id : factories) {
-			if (id.accepts(f)) {
-				try {
-					AnnotatedFile x = id.newIdentifier().identify(f);
-					// identification was successful, remove this from future iterations
-					factories.remove(id);
-					return x;
-				} catch (IdentificationFailedException e) {
-					ex.addSuppressed(e);
+	private <T extends FileDetails> T identify(T input, IdentifierFunction<T> func, BiFunction<T, Double, T> annotate) {
+		IdentifierFactoryIndex factories = index;
+		double threshold = confidenceThreshold;
+		// factories that haven't been used yet
+		BitSet remaining = new BitSet();
+		remaining.set(0, factories.size());
+		T ret = input;
+		Double confidence = null;
+		while (!remaining.isEmpty() && (confidence==null || confidence<threshold)) {
+			IdentificationFailedException ex = new IdentificationFailedException();
+			BitSet candidates = factories.candidates(ret);
+			candidates.and(remaining);
+			boolean found = false;
+			for (int i = candidates.nextSetBit(0); i >= 0 && !found; i = candidates.nextSetBit(i + 1)) {
+				IdentifierFactory id = factories.get(i);
+				Optional<Double> c = id.getConfidence(ret);
+				if (id.accepts(ret)) {
+					try {
+						ret = func.apply(id.newIdentifier(), ret);
+						// identification was successful, remove this from future iterations
+						remaining.clear(i);
+						if (c.isPresent()) {
+							confidence = c.get();
+							ret = annotate.apply(ret, confidence);
+						} else {
+							// the identifier may have kept or dropped the previous confidence
+							Object v = ret.getProperties().get(CONFIDENCE_PROPERTY);
+							confidence = v instanceof Double?(Double)v:null;
+						}
+						found = true;
+					} catch (IdentificationFailedException e) {
+						ex.addSuppressed(e);
+					}
 				}
 			}
-		}
-		throw ex;
-	}
-
-	private AnnotatedInputStream identify(AnnotatedInputStream stream, List<IdentifierFactory> factories) throws IdentificationFailedException {
-		IdentificationFailedException ex = new IdentificationFailedException();
-		for (IdentifierFactory id : factories) {
-			if (id.accepts(stream)) {
-				try {
-					AnnotatedInputStream ret = id.newIdentifier().identify(stream);
-					// identification was successful, remove this from future iterations
-					factories.remove(id);
-					return ret;
-				} catch (IdentificationFailedException e) {
-					ex.addSuppressed(e);
+			if (!found) {
+				if (logger.isLoggable(Level.FINE)) {
+					logger.log(Level.FINE, "No matching identifier factories.", ex);
 				}
+				break;
 			}
 		}
-		throw ex;
+		return ret;
 	}
 
-}
\ No newline at end of file
+}
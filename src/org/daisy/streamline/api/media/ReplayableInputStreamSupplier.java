@@ -0,0 +1,243 @@
+package org.daisy.streamline.api.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * <p>Provides an input stream supplier that reads the start of the underlying
+ * source once and shares it between all input streams created by this instance.
+ * This is useful when the same source is opened several times, but usually
+ * only the first part of it is read, such as when identifying a format.</p>
+ *
+ * <p>The input streams returned by {@link #newInputStream()} serve the first
+ * bytes from the shared buffer. If a consumer reads past the end of the
+ * buffer, the rest of the data is read from the stream that was used to fill
+ * the buffer, or, if that stream has already been claimed by another consumer,
+ * from a new stream supplied by the underlying source.</p>
+ *
+ * <p>Calling {@link #close()} releases the underlying stream held by this
+ * instance, if it hasn't been claimed by a consumer. The instance can still
+ * be used after it has been closed.</p>
+ *
+ * @author Joel Håkansson
+ */
+public final class ReplayableInputStreamSupplier implements InputStreamSupplier, Closeable {
+	/**
+	 * The default buffer size, in bytes.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private final InputStreamSupplier source;
+	private final int bufferSize;
+	private byte[] buffer;
+	// true if the buffer contains all data in the source
+	private boolean complete;
+	// the stream used to fill the buffer, positioned immediately after the buffer
+	private InputStream tail;
+
+	private ReplayableInputStreamSupplier(InputStreamSupplier source, int bufferSize) {
+		this.source = source;
+		this.bufferSize = bufferSize;
+		this.buffer = null;
+		this.complete = false;
+		this.tail = null;
+	}
+
+	/**
+	 * Creates a new replayable input stream supplier with the default buffer size.
+	 * If the source is already a replayable input stream supplier, the source
+	 * is returned.
+	 * @param source the source
+	 * @return a replayable input stream supplier
+	 * @throws NullPointerException if source is null
+	 */
+	public static ReplayableInputStreamSupplier create(InputStreamSupplier source) {
+		Objects.requireNonNull(source);
+		if (source instanceof ReplayableInputStreamSupplier) {
+			return (ReplayableInputStreamSupplier)source;
+		}
+		return new ReplayableInputStreamSupplier(source, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new replayable input stream supplier with the specified buffer size.
+	 * @param source the source
+	 * @param bufferSize the maximum number of bytes to keep in memory
+	 * @return a new replayable input stream supplier
+	 * @throws NullPointerException if source is null
+	 * @throws IllegalArgumentException if buffer size is less than 1
+	 */
+	public static ReplayableInputStreamSupplier create(InputStreamSupplier source, int bufferSize) {
+		Objects.requireNonNull(source);
+		if (bufferSize<1) {
+			throw new IllegalArgumentException("Buffer size must be greater than 0: " + bufferSize);
+		}
+		return new ReplayableInputStreamSupplier(source, bufferSize);
+	}
+
+	@Override
+	public synchronized InputStream newInputStream() throws IOException {
+		if (buffer==null) {
+			fill();
+		}
+		return new ReplayInputStream(buffer);
+	}
+
+	private void fill() throws IOException {
+		InputStream is = source.newInputStream();
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream(Math.min(bufferSize, 8192));
+			byte[] b = new byte[Math.min(bufferSize, 8192)];
+			int len;
+			while (os.size()<bufferSize && (len = is.read(b, 0, Math.min(b.length, bufferSize-os.size())))>-1) {
+				os.write(b, 0, len);
+			}
+			if (os.size()<bufferSize) {
+				complete = true;
+				is.close();
+			} else {
+				tail = is;
+			}
+			buffer = os.toByteArray();
+		} catch (IOException e) {
+			is.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets an input stream positioned immediately after the buffer.
+	 * @return an input stream, or null if the buffer contains all data
+	 * @throws IOException if an I/O error occurs
+	 */
+	private synchronized InputStream claimTail() throws IOException {
+		if (complete) {
+			return null;
+		} else if (tail!=null) {
+			InputStream ret = tail;
+			tail = null;
+			return ret;
+		} else {
+			InputStream ret = source.newInputStream();
+			try {
+				skipFully(ret, buffer.length);
+			} catch (IOException e) {
+				ret.close();
+				throw e;
+			}
+			return ret;
+		}
+	}
+
+	private static void skipFully(InputStream is, long n) throws IOException {
+		while (n>0) {
+			long skipped = is.skip(n);
+			if (skipped<=0) {
+				if (is.read()==-1) {
+					throw new EOFException("The source changed while it was being read.");
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	@Override
+	public String getSystemId() {
+		return source.getSystemId();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (tail!=null) {
+			InputStream is = tail;
+			tail = null;
+			is.close();
+		}
+	}
+
+	private final class ReplayInputStream extends InputStream {
+		private final byte[] data;
+		private int pos;
+		private InputStream next;
+		private boolean closed;
+
+		private ReplayInputStream(byte[] data) {
+			this.data = data;
+			this.pos = 0;
+			this.next = null;
+			this.closed = false;
+		}
+
+		private InputStream next() throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (next==null) {
+				next = claimTail();
+			}
+			return next;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos<data.length) {
+				return data[pos++] & 0xff;
+			}
+			InputStream is = next();
+			return is==null?-1:is.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Objects.requireNonNull(b);
+			if (off<0 || len<0 || len>b.length-off) {
+				throw new IndexOutOfBoundsException();
+			} else if (len==0) {
+				return 0;
+			}
+			if (pos<data.length) {
+				int n = Math.min(len, data.length-pos);
+				System.arraycopy(data, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+			InputStream is = next();
+			return is==null?-1:is.read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n<=0) {
+				return 0;
+			}
+			if (pos<data.length) {
+				int k = (int)Math.min(n, data.length-pos);
+				pos += k;
+				return k;
+			}
+			InputStream is = next();
+			return is==null?0:is.skip(n);
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (pos<data.length) {
+				return data.length-pos;
+			}
+			return next==null?0:next.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			if (next!=null) {
+				next.close();
+			}
+		}
+	}
+
+}
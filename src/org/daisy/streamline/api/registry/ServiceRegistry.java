@@ -0,0 +1,180 @@
+package org.daisy.streamline.api.registry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * <p>Provides a registry of service providers with a cache of lookups. A lookup
+ * selects a provider for a key using a resolver function and the result is cached.
+ * Optionally, the absence of a provider is also cached.</p>
+ *
+ * <p>Lookups are made against an immutable snapshot of the providers and don't
+ * acquire any locks. Adding or removing a provider publishes a new snapshot.
+ * When a provider is removed, only the cached lookups that resolved to that provider
+ * are discarded. When a provider is added, the cached lookups are updated by
+ * comparing the previous result with the new provider.</p>
+ *
+ * <p>The resolver is given a key and a list of providers, in the order in which they
+ * were added, and selects the best provider for the key, if any. For the updates
+ * described above to be correct, the result of the resolver must not depend on
+ * which other providers are in the list, except through their relative order. In
+ * other words, selecting from a list must give the same result as selecting from the
+ * result for all but the last element of the list, followed by the last element.
+ * Selecting the first, the last or the highest ranking matching provider all meet
+ * this requirement.</p>
+ *
+ * <p>The number of cached lookups is bounded. When the cache is full, an arbitrary
+ * cached lookup is evicted to make room for a new one. Lookups with a <code>null</code>
+ * key are passed to the resolver, but are never cached.</p>
+ *
+ * @author Joel Håkansson
+ *
+ * @param <K> the type of keys
+ * @param <S> the type of providers
+ */
+public final class ServiceRegistry<K, S> {
+	private static final int DEFAULT_MAX_ENTRIES = 10000;
+	private final BiFunction<K, List<S>, Optional<S>> resolver;
+	private final int maxEntries;
+	private final boolean cacheMisses;
+	private volatile Snapshot<K, S> snapshot;
+
+	private static final class Snapshot<K, S> {
+		private final List<S> providers;
+		private final Map<K, Optional<S>> cache;
+
+		private Snapshot(List<S> providers, Map<K, Optional<S>> cache) {
+			this.providers = Collections.unmodifiableList(providers);
+			this.cache = cache;
+		}
+	}
+
+	/**
+	 * Creates a new empty registry with the specified resolver. Lookups
+	 * that don't find a provider are not cached.
+	 * @param resolver the resolver
+	 */
+	public ServiceRegistry(BiFunction<K, List<S>, Optional<S>> resolver) {
+		this(resolver, DEFAULT_MAX_ENTRIES, false);
+	}
+
+	/**
+	 * Creates a new empty registry with the specified resolver and
+	 * cache properties.
+	 * @param resolver the resolver
+	 * @param maxEntries the maximum number of cached lookups. When the
+	 * 		cache is full, a cached lookup is evicted for each new lookup.
+	 * @param cacheMisses true if lookups that don't find a provider should
+	 * 		be cached, false otherwise
+	 * @throws IllegalArgumentException if max entries is less than 0
+	 */
+	public ServiceRegistry(BiFunction<K, List<S>, Optional<S>> resolver, int maxEntries, boolean cacheMisses) {
+		if (maxEntries<0) {
+			throw new IllegalArgumentException("Value must be greater than or equal to 0: " + maxEntries);
+		}
+		this.resolver = Objects.requireNonNull(resolver);
+		this.maxEntries = maxEntries;
+		this.cacheMisses = cacheMisses;
+		this.snapshot = new Snapshot<>(new ArrayList<>(), new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * Adds a provider to the registry.
+	 * @param provider the provider
+	 */
+	public synchronized void add(S provider) {
+		Objects.requireNonNull(provider);
+		Snapshot<K, S> current = snapshot;
+		List<S> providers = new ArrayList<>(current.providers);
+		providers.add(provider);
+		Map<K, Optional<S>> cache = new ConcurrentHashMap<>();
+		List<S> single = Collections.singletonList(provider);
+		current.cache.forEach((k, v)->{
+			Optional<S> updated = v.isPresent()?resolver.apply(k, Arrays.asList(v.get(), provider)):resolver.apply(k, single);
+			if (updated.isPresent() || cacheMisses) {
+				cache.put(k, updated);
+			}
+		});
+		snapshot = new Snapshot<>(providers, cache);
+	}
+
+	/**
+	 * Removes a provider from the registry.
+	 * @param provider the provider
+	 * @return true if the provider was removed, false otherwise
+	 */
+	public synchronized boolean remove(S provider) {
+		Snapshot<K, S> current = snapshot;
+		List<S> providers = new ArrayList<>(current.providers);
+		if (!providers.remove(provider)) {
+			return false;
+		}
+		Map<K, Optional<S>> cache = new ConcurrentHashMap<>();
+		// The provider may have been added more than once
+		boolean stillPresent = providers.contains(provider);
+		current.cache.forEach((k, v)->{
+			if (stillPresent || !v.isPresent() || !v.get().equals(provider)) {
+				cache.put(k, v);
+			}
+		});
+		snapshot = new Snapshot<>(providers, cache);
+		return true;
+	}
+
+	/**
+	 * Gets the provider for the specified key.
+	 * @param key the key, lookups with a <code>null</code> key are not cached
+	 * @return the provider, or an empty optional if no provider
+	 * 		is available for the key
+	 */
+	public Optional<S> get(K key) {
+		Snapshot<K, S> s = snapshot;
+		if (key==null) {
+			return resolver.apply(null, s.providers);
+		}
+		Optional<S> ret = s.cache.get(key);
+		if (ret==null) {
+			ret = resolver.apply(key, s.providers);
+			if ((ret.isPresent() || cacheMisses) && maxEntries>0) {
+				if (s.cache.size()>=maxEntries) {
+					// Concurrent lookups may exceed the limit slightly, which is acceptable
+					Iterator<K> it = s.cache.keySet().iterator();
+					if (it.hasNext()) {
+						it.next();
+						it.remove();
+					}
+				}
+				// If a new snapshot is being published, this entry is either
+				// discarded together with s or updated when it is copied
+				s.cache.putIfAbsent(key, ret);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the providers in the registry, in the order in which they were added.
+	 * @return an unmodifiable list of providers
+	 */
+	public List<S> getProviders() {
+		return snapshot.providers;
+	}
+
+	/**
+	 * Returns true if the registry contains the specified provider.
+	 * @param provider the provider
+	 * @return true if the provider is in the registry, false otherwise
+	 */
+	public boolean contains(S provider) {
+		return snapshot.providers.contains(provider);
+	}
+
+}
@@ -0,0 +1,6 @@
+/**
+ * Provides a registry for the service makers of this API.
+ * 
+ * @author Joel Håkansson
+ */
+package org.daisy.streamline.api.registry;
\ No newline at end of file
@@ -1,16 +1,14 @@
 package org.daisy.streamline.api.tasks;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.daisy.streamline.api.registry.ServiceRegistry;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
@@ -23,8 +21,7 @@ import org.osgi.service.component.annotations.ReferencePolicy;
  */
 @Component
 public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
-	private final List<TaskGroupFactory> filters;
-	private final Map<TaskGroupInformation, TaskGroupFactory> map;
+	private final ServiceRegistry<TaskGroupInformation, TaskGroupFactory> registry;
 	private final Logger logger;
 
 	/**
@@ -32,8 +29,7 @@ public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
 	 */
 	public TaskGroupFactoryMaker() {
 		logger = Logger.getLogger(TaskGroupFactoryMaker.class.getCanonicalName());
-		filters = new CopyOnWriteArrayList<>();
-		this.map = Collections.synchronizedMap(new HashMap<TaskGroupInformation, TaskGroupFactory>());
+		this.registry = new ServiceRegistry<>(this::findFactory);
 	}
 
 	/**
@@ -68,7 +64,7 @@ public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
 	@Reference(cardinality=ReferenceCardinality.MULTIPLE, policy=ReferencePolicy.DYNAMIC)
 	public void addFactory(TaskGroupFactory factory) {
 		logger.finer("Adding factory: " + factory);
-		filters.add(factory);
+		registry.add(factory);
 	}
 
 	/**
@@ -78,12 +74,7 @@ public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
 	// Unbind reference added automatically from addFactory annotation
 	public void removeFactory(TaskGroupFactory factory) {
 		logger.finer("Removing factory: " + factory);
-		// this is to avoid adding items to the cache that were removed while
-		// iterating
-		synchronized (map) {
-			filters.remove(factory);
-			map.clear();
-		}
+		registry.remove(factory);
 	}
 
 	private static String toKey(TaskGroupSpecification spec) {
@@ -96,27 +87,19 @@ public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
 				append(")").toString();
 	}
 	
-	@Override
-	public TaskGroupFactory getFactory(TaskGroupInformation spec) {
-		TaskGroupFactory template = map.get(spec);
-		if (template==null) {
-			// this is to avoid adding items to the cache that were removed
-			// while iterating
-			synchronized (map) {
-				for (TaskGroupFactory h : filters) {
-					if (h.supportsSpecification(spec)) {
-						logger.fine("Found a factory for " + spec.toString() + " (" + h.getClass() + ")");
-						map.put(spec, h);
-						template = h;
-						break;
-					}
-				}
+	private Optional<TaskGroupFactory> findFactory(TaskGroupInformation spec, List<TaskGroupFactory> filters) {
+		for (TaskGroupFactory h : filters) {
+			if (h.supportsSpecification(spec)) {
+				logger.fine("Found a factory for " + spec.toString() + " (" + h.getClass() + ")");
+				return Optional.of(h);
 			}
 		}
-		if (template==null) {
-			throw new IllegalArgumentException("Cannot locate an TaskGroup for " + spec.toString());
-		}
-		return template;
+		return Optional.empty();
+	}
+	
+	@Override
+	public TaskGroupFactory getFactory(TaskGroupInformation spec) {
+		return registry.get(spec).orElseThrow(()->new IllegalArgumentException("Cannot locate an TaskGroup for " + spec.toString()));
 	}
 	
 	@Override
@@ -141,7 +124,7 @@ public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
 	@Override
 	public Set<TaskGroupInformation> listAll() {
 		HashSet<TaskGroupInformation> ret = new HashSet<>();
-		for (TaskGroupFactory h : filters) {
+		for (TaskGroupFactory h : registry.getProviders()) {
 			ret.addAll(h.listAll());
 		}
 		return ret;
@@ -150,7 +133,7 @@ public class TaskGroupFactoryMaker implements TaskGroupFactoryMakerService {
 	@Override
 	public Set<TaskGroupInformation> list(String locale) {
 		HashSet<TaskGroupInformation> ret = new HashSet<>();
-		for (TaskGroupFactory h : filters) {
+		for (TaskGroupFactory h : registry.getProviders()) {
 			ret.addAll(h.list(locale));
 		}
 		return ret;
@@ -1,16 +1,15 @@
 package org.daisy.streamline.api.tasks;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.daisy.streamline.api.media.FormatIdentifier;
+import org.daisy.streamline.api.registry.ServiceRegistry;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
@@ -27,8 +26,8 @@ import org.osgi.service.component.annotations.ReferencePolicy;
  */
 @Component
 public class TaskSystemFactoryMaker implements TaskSystemFactoryMakerService {
-	private final List<TaskSystemFactory> filters;
-	private final Map<String, TaskSystemFactory> map;
+	// Keys are lists of input format, output format and locale
+	private final ServiceRegistry<List<String>, TaskSystemFactory> registry;
 	private final Logger logger;
 
 	/**
@@ -36,8 +35,7 @@ public class TaskSystemFactoryMaker implements TaskSystemFactoryMakerService {
 	 */
 	public TaskSystemFactoryMaker() {
 		logger = Logger.getLogger(TaskSystemFactoryMaker.class.getCanonicalName());
-		filters = new CopyOnWriteArrayList<>();
-		this.map = Collections.synchronizedMap(new HashMap<String, TaskSystemFactory>());
+		this.registry = new ServiceRegistry<>(this::findFactory);
 	}
 
 	/**
@@ -72,7 +70,7 @@ public class TaskSystemFactoryMaker implements TaskSystemFactoryMakerService {
 	@Reference(cardinality=ReferenceCardinality.MULTIPLE, policy=ReferencePolicy.DYNAMIC)
 	public void addFactory(TaskSystemFactory factory) {
 		logger.finer("Adding factory: " + factory);
-		filters.add(factory);
+		registry.add(factory);
 	}
 
 	/**
@@ -82,41 +80,40 @@ public class TaskSystemFactoryMaker implements TaskSystemFactoryMakerService {
 	// Unbind reference added automatically from addFactory annotation
 	public void removeFactory(TaskSystemFactory factory) {
 		logger.finer("Removing factory: " + factory);
-		// this is to avoid adding items to the cache that were removed while
-		// iterating
-		synchronized (map) {
-			filters.remove(factory);
-			map.clear();
-		}
+		registry.remove(factory);
 	}
 	
 	private static String toKey(String inputFormat, String outputFormat, String context) {
 		return context + "(" + inputFormat + "->" + outputFormat + ")";
 	}
 
-	@Override
-	public TaskSystemFactory getFactory(String inputFormat, String outputFormat, String locale)
-			throws TaskSystemFactoryException {
-		String key = toKey(inputFormat, outputFormat, locale);
-		TaskSystemFactory template = map.get(key);
+	private Optional<TaskSystemFactory> findFactory(List<String> key, List<TaskSystemFactory> filters) {
+		String inputFormat = key.get(0);
+		String outputFormat = key.get(1);
+		String locale = key.get(2);
+		TaskSystemFactory template = null;
 		Integer matchedPriority = null;
-		if (template==null) {
-			for (TaskSystemFactory h : filters) {
-				if (h.supportsSpecification(inputFormat, outputFormat, locale)) {
-					int currentPriority = h.getPriority();
-					if (matchedPriority==null || matchedPriority<currentPriority) {
-						matchedPriority = currentPriority;
-						logger.fine("Found a factory for " + locale + " (" + h.getClass() + ")");
-						map.put(key, h);
-						template = h;
-					}
+		for (TaskSystemFactory h : filters) {
+			if (h.supportsSpecification(inputFormat, outputFormat, locale)) {
+				int currentPriority = h.getPriority();
+				if (matchedPriority==null || matchedPriority<currentPriority) {
+					matchedPriority = currentPriority;
+					logger.fine("Found a factory for " + locale + " (" + h.getClass() + ")");
+					template = h;
 				}
 			}
 		}
-		if (template==null) {
-			throw new TaskSystemFactoryException("Cannot locate a TaskSystemFactory for " + key);
+		return Optional.ofNullable(template);
+	}
+
+	@Override
+	public TaskSystemFactory getFactory(String inputFormat, String outputFormat, String locale)
+			throws TaskSystemFactoryException {
+		Optional<TaskSystemFactory> template = registry.get(Arrays.asList(inputFormat, outputFormat, locale));
+		if (!template.isPresent()) {
+			throw new TaskSystemFactoryException("Cannot locate a TaskSystemFactory for " + toKey(inputFormat, outputFormat, locale));
 		}
-		return template;
+		return template.get();
 	}
 
 	@Override
@@ -127,21 +124,21 @@ public class TaskSystemFactoryMaker implements TaskSystemFactoryMakerService {
 
 	@Override
 	public Set<FormatIdentifier> listInputs() {
-		return filters.stream().map(v->v.listInputs()).flatMap(Set::stream).collect(Collectors.toSet());
+		return registry.getProviders().stream().map(v->v.listInputs()).flatMap(Set::stream).collect(Collectors.toSet());
 	}
 
 	@Override
 	public Set<FormatIdentifier> listOutputs() {
-		return filters.stream().map(v->v.listOutputs()).flatMap(Set::stream).collect(Collectors.toSet());
+		return registry.getProviders().stream().map(v->v.listOutputs()).flatMap(Set::stream).collect(Collectors.toSet());
 	}
 
 	@Override
 	public Set<TaskSystemInformation> listForInput(FormatIdentifier input, String locale) {
-		return filters.stream().map(v->v.listForInput(input, locale)).flatMap(Set::stream).collect(Collectors.toSet());
+		return registry.getProviders().stream().map(v->v.listForInput(input, locale)).flatMap(Set::stream).collect(Collectors.toSet());
 	}
 
 	@Override
 	public Set<TaskSystemInformation> listForOutput(FormatIdentifier output, String locale) {
-		return filters.stream().map(v->v.listForOutput(output, locale)).flatMap(Set::stream).collect(Collectors.toSet());
+		return registry.getProviders().stream().map(v->v.listForOutput(output, locale)).flatMap(Set::stream).collect(Collectors.toSet());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package org.daisy.streamline.api.tasks.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.daisy.streamline.api.media.InputStreamSupplier;
+
+/**
+ * Provides input streams that read a file while it is being written.
+ * When a stream reaches the end of the file, it waits for more data
+ * until the writer signals that it is done, see {@link #done()}.
+ * The writer must write the file sequentially, from the beginning to
+ * the end.
+ * @author Joel Håkansson
+ */
+final class TailingInputStreamSupplier implements InputStreamSupplier {
+	private static final long WAIT_MILLIS = 10;
+	private final Path file;
+	private final Object lock = new Object();
+	private boolean done = false;
+	private IOException failure = null;
+
+	TailingInputStreamSupplier(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Signals that the file is complete.
+	 */
+	void done() {
+		synchronized (lock) {
+			done = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Signals that the file will not be completed. Streams that are
+	 * waiting for data throw an exception with the specified cause.
+	 * @param cause the cause
+	 */
+	void fail(Throwable cause) {
+		synchronized (lock) {
+			done = true;
+			failure = new IOException("Writing failed: " + file, cause);
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the file to grow, or for the writer to finish.
+	 * @return true if the writer is done, false otherwise
+	 * @throws IOException if writing failed or the thread was interrupted
+	 */
+	private boolean await() throws IOException {
+		synchronized (lock) {
+			if (!done) {
+				try {
+					lock.wait(WAIT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure!=null) {
+				throw failure;
+			}
+			return done;
+		}
+	}
+
+	@Override
+	public InputStream newInputStream() throws IOException {
+		while (true) {
+			try {
+				return new TailingInputStream(FileChannel.open(file, StandardOpenOption.READ));
+			} catch (NoSuchFileException e) {
+				if (await() && !Files.exists(file)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Override
+	public String getSystemId() {
+		return file.toUri().toString();
+	}
+
+	private final class TailingInputStream extends InputStream {
+		private final FileChannel fc;
+
+		private TailingInputStream(FileChannel fc) {
+			this.fc = fc;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int len = read(b, 0, 1);
+			return len==-1?-1:b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0) {
+				return 0;
+			}
+			ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			while (true) {
+				int ret = fc.read(bb);
+				if (ret>0) {
+					return ret;
+				} else if (await()) {
+					// The writer is done, read what remains
+					ret = fc.read(bb);
+					return ret>0?ret:-1;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			fc.close();
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package org.daisy.streamline.api.tasks.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.BaseFolder;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+import org.daisy.streamline.api.media.FileSet;
+import org.daisy.streamline.api.media.ModifiableFileSet;
+import org.daisy.streamline.api.option.UserOption;
+import org.daisy.streamline.api.tasks.InternalTaskException;
+import org.daisy.streamline.api.tasks.ReadWriteTask;
+import org.daisy.streamline.api.validity.ValidationReport;
+import org.daisy.streamline.api.validity.Validator;
+
+/**
+ * <p>Provides a task that validates the output of another read/write task
+ * while it is being written. The validator runs on a separate thread and reads
+ * the output file as the task writes it, so that the validation report is available
+ * shortly after the task completes, without reading the output again afterwards.</p>
+ *
+ * <p>The output file is deleted before the wrapped task is executed, and the
+ * validator starts reading it once it has been created. The wrapped task must write
+ * the output file sequentially. Tasks that create the output file and later replace it,
+ * or that rewrite parts of the output, cannot be validated concurrently.</p>
+ *
+ * <p>When executed on a file set, the wrapped task is executed first and the
+ * manifest of the result is validated afterwards.</p>
+ *
+ * @author Joel Håkansson
+ */
+public class ValidatingTask extends ReadWriteTask {
+	// The validator blocks while waiting for output, so it's given a thread of its own by default
+	private static final Executor DEFAULT_EXECUTOR = r->{
+		Thread t = new Thread(r, "validating-task");
+		t.setDaemon(true);
+		t.start();
+	};
+	private final ReadWriteTask task;
+	private final Validator validator;
+	private final Map<String, Object> options;
+	private final Consumer<ValidationReport> reportHandler;
+	private final boolean failOnInvalid;
+	private final Executor executor;
+
+	/**
+	 * Provides a builder for validating tasks.
+	 */
+	public static class Builder {
+		private final ReadWriteTask task;
+		private final Validator validator;
+		private final Map<String, Object> options = new HashMap<>();
+		private Consumer<ValidationReport> reportHandler = r->{};
+		private boolean failOnInvalid = false;
+		private Executor executor = DEFAULT_EXECUTOR;
+
+		private Builder(ReadWriteTask task, Validator validator) {
+			this.task = Objects.requireNonNull(task);
+			this.validator = Objects.requireNonNull(validator);
+		}
+
+		/**
+		 * Sets the validation options.
+		 * @param value the options
+		 * @return this builder
+		 */
+		public Builder options(Map<String, Object> value) {
+			this.options.clear();
+			this.options.putAll(value);
+			return this;
+		}
+
+		/**
+		 * Sets the consumer of the validation reports. The consumer
+		 * is called once for each execution, after the task has completed.
+		 * @param value the consumer
+		 * @return this builder
+		 */
+		public Builder reportHandler(Consumer<ValidationReport> value) {
+			this.reportHandler = Objects.requireNonNull(value);
+			return this;
+		}
+
+		/**
+		 * Sets whether or not the task should fail if the output is
+		 * invalid. Default is false.
+		 * @param value true if the task should fail, false otherwise
+		 * @return this builder
+		 */
+		public Builder failOnInvalid(boolean value) {
+			this.failOnInvalid = value;
+			return this;
+		}
+
+		/**
+		 * Sets the executor to run the validator on. The validator waits
+		 * for the output while the task is running, which means that the executor
+		 * should not be shared with the task. Defaults to a new thread for each
+		 * execution.
+		 * @param value the executor
+		 * @return this builder
+		 */
+		public Builder executor(Executor value) {
+			this.executor = Objects.requireNonNull(value);
+			return this;
+		}
+
+		/**
+		 * Builds a new validating task based on the current state of this builder.
+		 * @return a new validating task
+		 */
+		public ValidatingTask build() {
+			return new ValidatingTask(this);
+		}
+	}
+
+	private ValidatingTask(Builder builder) {
+		super(builder.task.getName());
+		this.task = builder.task;
+		this.validator = builder.validator;
+		this.options = Collections.unmodifiableMap(new HashMap<>(builder.options));
+		this.reportHandler = builder.reportHandler;
+		this.failOnInvalid = builder.failOnInvalid;
+		this.executor = builder.executor;
+	}
+
+	/**
+	 * Creates a new builder for a validating task.
+	 * @param task the task whose output should be validated
+	 * @param validator the validator
+	 * @return a new builder
+	 * @throws NullPointerException if task or validator is null
+	 */
+	public static Builder with(ReadWriteTask task, Validator validator) {
+		return new Builder(task, validator);
+	}
+
+	@Override
+	@Deprecated
+	public void execute(File input, File output) throws InternalTaskException {
+		execute(DefaultAnnotatedFile.with(input).build(), output);
+	}
+
+	@Override
+	public AnnotatedFile execute(AnnotatedFile input, File output) throws InternalTaskException {
+		try {
+			// Otherwise, the validator could read the previous contents of the file
+			Files.deleteIfExists(output.toPath());
+		} catch (IOException e) {
+			throw new InternalTaskException(e);
+		}
+		TailingInputStreamSupplier tail = new TailingInputStreamSupplier(output.toPath());
+		CompletableFuture<ValidationReport> report = CompletableFuture.supplyAsync(()->validator.validate(tail, options), executor);
+		AnnotatedFile ret;
+		try {
+			ret = task.execute(input, output);
+			tail.done();
+		} catch (InternalTaskException | RuntimeException | Error e) {
+			tail.fail(e);
+			throw e;
+		}
+		handle(join(report));
+		return ret;
+	}
+
+	@Override
+	public ModifiableFileSet execute(FileSet input, BaseFolder output) throws InternalTaskException {
+		ModifiableFileSet ret = task.execute(input, output);
+		try {
+			handle(validator.validate(ret.getManifest().getPath().toUri().toURL(), options));
+		} catch (MalformedURLException e) {
+			throw new InternalTaskException(e);
+		}
+		return ret;
+	}
+
+	@Override
+	public List<UserOption> getOptions() {
+		return task.getOptions();
+	}
+
+	private void handle(ValidationReport report) throws InternalTaskException {
+		reportHandler.accept(report);
+		if (failOnInvalid && !report.isValid()) {
+			throw new InternalTaskException("Validation failed: " + getName());
+		}
+	}
+
+	private static ValidationReport join(CompletableFuture<ValidationReport> f) throws InternalTaskException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalTaskException("Interrupted while waiting for validation.", e);
+		} catch (ExecutionException e) {
+			throw new InternalTaskException("Validation failed with an exception.", e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,411 @@
+package org.daisy.streamline.api.validity;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.Permission;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.streamline.api.media.InputStreamSupplier;
+
+/**
+ * Provides asynchronous execution of validations with a timeout. When a
+ * validation times out or is cancelled, the thread running it is interrupted and
+ * the input streams it has opened, if any, are closed. Streams are tracked when
+ * they are opened using the supplied input, that is, either the input stream supplier
+ * or the URL, or a URL resolved against it.
+ * @author Joel Håkansson
+ */
+final class AsyncValidation {
+	private static final Logger logger = Logger.getLogger(AsyncValidation.class.getCanonicalName());
+	private final CompletableFuture<ValidationReport> result;
+	private final List<InputStream> streams;
+	private Thread runner;
+
+	private static class TimerHolder {
+		private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+		private static ScheduledThreadPoolExecutor newTimer() {
+			ScheduledThreadPoolExecutor ret = new ScheduledThreadPoolExecutor(1, r->{
+				Thread t = new Thread(r, "validation-timeout");
+				t.setDaemon(true);
+				return t;
+			});
+			ret.setRemoveOnCancelPolicy(true);
+			return ret;
+		}
+	}
+
+	private AsyncValidation() {
+		this.result = new CompletableFuture<>();
+		this.streams = new ArrayList<>();
+		this.runner = null;
+	}
+
+	/**
+	 * Runs a validation of a URL asynchronously. The streams opened using the
+	 * URL that is passed to the validation are closed if the validation is
+	 * cancelled or times out.
+	 * @param input the input, may be null
+	 * @param validation the validation
+	 * @param executor the executor
+	 * @param timeout the timeout
+	 * @return a future for the validation report
+	 */
+	static CompletableFuture<ValidationReport> run(URL input, Function<URL, ValidationReport> validation, Executor executor, Duration timeout) {
+		AsyncValidation ret = new AsyncValidation();
+		URL tracked = input!=null?ret.track(input):null;
+		ret.start(()->validation.apply(tracked), executor, timeout);
+		return ret.result;
+	}
+
+	/**
+	 * Runs a validation of an input stream supplier asynchronously. The streams
+	 * returned by the supplier that is passed to the validation are closed if the
+	 * validation is cancelled or times out.
+	 * @param input the input
+	 * @param validation the validation
+	 * @param executor the executor
+	 * @param timeout the timeout
+	 * @return a future for the validation report
+	 */
+	static CompletableFuture<ValidationReport> run(InputStreamSupplier input, Function<InputStreamSupplier, ValidationReport> validation, Executor executor, Duration timeout) {
+		AsyncValidation ret = new AsyncValidation();
+		InputStreamSupplier tracked = ret.new TrackingInputStreamSupplier(input);
+		ret.start(()->validation.apply(tracked), executor, timeout);
+		return ret.result;
+	}
+
+	private void start(Supplier<ValidationReport> validation, Executor executor, Duration timeout) {
+		Objects.requireNonNull(timeout);
+		Runnable task = ()->{
+			synchronized (this) {
+				if (result.isDone()) {
+					// cancelled before it started
+					return;
+				}
+				runner = Thread.currentThread();
+			}
+			try {
+				result.complete(validation.get());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			} finally {
+				synchronized (this) {
+					runner = null;
+					// Clear the interrupted status, in case this validation was
+					// interrupted after it completed, so that it doesn't affect
+					// the next task run by the thread
+					Thread.interrupted();
+				}
+			}
+		};
+		ScheduledFuture<?> timer = TimerHolder.TIMER.schedule(
+				()->result.completeExceptionally(new TimeoutException("Validation timed out after " + timeout)),
+				timeout.toNanos(), TimeUnit.NANOSECONDS);
+		result.whenComplete((v, e)->{
+			timer.cancel(false);
+			if (e!=null) {
+				release();
+			}
+		});
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	private void release() {
+		List<InputStream> toClose;
+		synchronized (this) {
+			if (runner!=null) {
+				runner.interrupt();
+			}
+			toClose = new ArrayList<>(streams);
+			streams.clear();
+		}
+		for (InputStream is : toClose) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				if (logger.isLoggable(Level.FINE)) {
+					logger.log(Level.FINE, "Failed to close stream.", e);
+				}
+			}
+		}
+	}
+
+	private URL track(URL url) {
+		try {
+			// URLs resolved against this one use the same handler
+			return new URL(null, url.toExternalForm(), new TrackingURLStreamHandler());
+		} catch (MalformedURLException e) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.log(Level.FINE, "Failed to track " + url, e);
+			}
+			return url;
+		}
+	}
+
+	/**
+	 * Registers a stream opened by the validation, so that it's closed
+	 * if the validation is cancelled or times out.
+	 * @param is the stream
+	 * @return the registered stream
+	 * @throws IOException if the validation is already done, in which case
+	 * 			the stream is closed
+	 */
+	private InputStream track(InputStream is) throws IOException {
+		synchronized (this) {
+			if (!result.isDone()) {
+				InputStream ret = new FilterInputStream(is) {
+					@Override
+					public void close() throws IOException {
+						synchronized (AsyncValidation.this) {
+							streams.remove(this);
+						}
+						super.close();
+					}
+				};
+				streams.add(ret);
+				return ret;
+			}
+		}
+		is.close();
+		throw new IOException("Validation cancelled.");
+	}
+
+	private final class TrackingURLStreamHandler extends URLStreamHandler {
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException {
+			return new TrackingURLConnection(u, new URL(u.toExternalForm()).openConnection());
+		}
+	}
+
+	/**
+	 * Provides a connection that tracks the input streams of the underlying
+	 * connection. Everything else is forwarded to the underlying connection,
+	 * including the request properties and settings. However, the connection
+	 * is a plain URLConnection, also if the underlying connection is, for
+	 * example, an HttpURLConnection.
+	 */
+	private final class TrackingURLConnection extends URLConnection {
+		private final URLConnection conn;
+
+		private TrackingURLConnection(URL url, URLConnection conn) {
+			super(url);
+			this.conn = conn;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			conn.connect();
+			connected = true;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return track(conn.getInputStream());
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return conn.getOutputStream();
+		}
+
+		@Override
+		public Permission getPermission() throws IOException {
+			return conn.getPermission();
+		}
+
+		@Override
+		public void setRequestProperty(String key, String value) {
+			conn.setRequestProperty(key, value);
+		}
+
+		@Override
+		public void addRequestProperty(String key, String value) {
+			conn.addRequestProperty(key, value);
+		}
+
+		@Override
+		public String getRequestProperty(String key) {
+			return conn.getRequestProperty(key);
+		}
+
+		@Override
+		public Map<String, List<String>> getRequestProperties() {
+			return conn.getRequestProperties();
+		}
+
+		@Override
+		public void setConnectTimeout(int timeout) {
+			conn.setConnectTimeout(timeout);
+		}
+
+		@Override
+		public int getConnectTimeout() {
+			return conn.getConnectTimeout();
+		}
+
+		@Override
+		public void setReadTimeout(int timeout) {
+			conn.setReadTimeout(timeout);
+		}
+
+		@Override
+		public int getReadTimeout() {
+			return conn.getReadTimeout();
+		}
+
+		@Override
+		public void setUseCaches(boolean usecaches) {
+			conn.setUseCaches(usecaches);
+		}
+
+		@Override
+		public boolean getUseCaches() {
+			return conn.getUseCaches();
+		}
+
+		@Override
+		public void setDefaultUseCaches(boolean defaultusecaches) {
+			conn.setDefaultUseCaches(defaultusecaches);
+		}
+
+		@Override
+		public boolean getDefaultUseCaches() {
+			return conn.getDefaultUseCaches();
+		}
+
+		@Override
+		public void setDoInput(boolean doinput) {
+			conn.setDoInput(doinput);
+		}
+
+		@Override
+		public boolean getDoInput() {
+			return conn.getDoInput();
+		}
+
+		@Override
+		public void setDoOutput(boolean dooutput) {
+			conn.setDoOutput(dooutput);
+		}
+
+		@Override
+		public boolean getDoOutput() {
+			return conn.getDoOutput();
+		}
+
+		@Override
+		public void setAllowUserInteraction(boolean allowuserinteraction) {
+			conn.setAllowUserInteraction(allowuserinteraction);
+		}
+
+		@Override
+		public boolean getAllowUserInteraction() {
+			return conn.getAllowUserInteraction();
+		}
+
+		@Override
+		public void setIfModifiedSince(long ifmodifiedsince) {
+			conn.setIfModifiedSince(ifmodifiedsince);
+		}
+
+		@Override
+		public long getIfModifiedSince() {
+			return conn.getIfModifiedSince();
+		}
+
+		@Override
+		public long getDate() {
+			return conn.getDate();
+		}
+
+		@Override
+		public long getExpiration() {
+			return conn.getExpiration();
+		}
+
+		@Override
+		public String getContentType() {
+			return conn.getContentType();
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return conn.getContentEncoding();
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return conn.getContentLengthLong();
+		}
+
+		@Override
+		public long getLastModified() {
+			return conn.getLastModified();
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			return conn.getHeaderField(name);
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			return conn.getHeaderFields();
+		}
+
+		@Override
+		public String getHeaderFieldKey(int n) {
+			return conn.getHeaderFieldKey(n);
+		}
+
+		@Override
+		public String getHeaderField(int n) {
+			return conn.getHeaderField(n);
+		}
+	}
+
+	private final class TrackingInputStreamSupplier implements InputStreamSupplier {
+		private final InputStreamSupplier input;
+
+		private TrackingInputStreamSupplier(InputStreamSupplier input) {
+			this.input = input;
+		}
+
+		@Override
+		public InputStream newInputStream() throws IOException {
+			return track(input.newInputStream());
+		}
+
+		@Override
+		public String getSystemId() {
+			return input.getSystemId();
+		}
+	}
+
+}
@@ -0,0 +1,537 @@
+package org.daisy.streamline.api.validity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.streamline.api.media.FileDetails;
+import org.daisy.streamline.api.media.InputStreamSupplier;
+import org.daisy.streamline.api.option.UserOption;
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+
+/**
+ * <p>Provides a validator factory maker that caches the validation reports
+ * of the validators created by another validator factory maker. Reports are
+ * cached by a hash of the validated content, the validator identifier and
+ * the validation options. Validating content that has already been
+ * validated with the same validator and options returns the cached report
+ * without consulting the underlying validator.</p>
+ *
+ * <p>The validator identifier is the identifier passed to {@link #newValidator(String)}
+ * or, for validators created with {@link #newValidator(FileDetails)}, the class
+ * name of the validator combined with the format name, media type and extension
+ * of the details. The latter is the signature that {@link ValidatorFactoryMaker} uses
+ * to select a factory, which means that a validator class that is configured differently
+ * for different formats doesn't share reports between them. Options are compared by
+ * their string representation, and null options are treated as empty options.</p>
+ *
+ * <p>The in-memory cache is bounded, the least recently used reports are
+ * evicted first. If a storage location is specified, reports are also written to
+ * that folder and read from it when they aren't found in memory. The folder is
+ * bounded by the same number of reports, the least recently used reports are deleted
+ * first. Exceptions attached to validation messages are not written to storage, only
+ * their descriptions.</p>
+ *
+ * <p>All validation methods, including the listener based and asynchronous ones,
+ * are delegated to the underlying validator when the report isn't cached. A cached
+ * report is replayed to the listener, if any. The content is hashed on the calling
+ * thread, also for asynchronous validations.</p>
+ *
+ * <p>Reports of aborted validations and reports with omitted messages are not cached.</p>
+ *
+ * @author Joel Håkansson
+ */
+public final class CachingValidatorFactoryMaker implements ValidatorFactoryMakerService {
+	private static final Logger logger = Logger.getLogger(CachingValidatorFactoryMaker.class.getCanonicalName());
+	private static final int MAGIC = 0x56524332; // VRC2
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final String STORAGE_SUFFIX = ".report";
+	private final ValidatorFactoryMakerService maker;
+	private final Optional<Path> storage;
+	private final Map<String, ValidationReport> cache;
+	private final int maxEntries;
+
+	/**
+	 * Provides a builder for caching validator factory makers.
+	 */
+	public static class Builder {
+		private final ValidatorFactoryMakerService maker;
+		private Path storage = null;
+		private int maxEntries = 1000;
+
+		private Builder(ValidatorFactoryMakerService maker) {
+			this.maker = Objects.requireNonNull(maker);
+		}
+
+		/**
+		 * Sets the folder used to store reports. The folder is created
+		 * if it doesn't exist.
+		 * @param value the folder
+		 * @return this builder
+		 */
+		public Builder storage(Path value) {
+			this.storage = value;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of reports in the in-memory cache, and in the
+		 * storage folder, if any. Default is 1000.
+		 * @param value the maximum number of reports
+		 * @return this builder
+		 * @throws IllegalArgumentException if value is less than 1
+		 */
+		public Builder maxEntries(int value) {
+			if (value<1) {
+				throw new IllegalArgumentException("Value must be greater than 0: " + value);
+			}
+			this.maxEntries = value;
+			return this;
+		}
+
+		/**
+		 * Builds a new caching validator factory maker based on the current
+		 * state of this builder.
+		 * @return a new caching validator factory maker
+		 */
+		public CachingValidatorFactoryMaker build() {
+			return new CachingValidatorFactoryMaker(this);
+		}
+	}
+
+	private CachingValidatorFactoryMaker(Builder builder) {
+		this.maker = builder.maker;
+		this.storage = Optional.ofNullable(builder.storage);
+		this.maxEntries = builder.maxEntries;
+		this.cache = new LinkedHashMap<String, ValidationReport>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ValidationReport> eldest) {
+				return size()>CachingValidatorFactoryMaker.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Creates a new builder for a caching validator factory maker.
+	 * @param maker the validator factory maker to use when
+	 * 			a report is not in the cache
+	 * @return a new builder
+	 * @throws NullPointerException if maker is null
+	 */
+	public static Builder with(ValidatorFactoryMakerService maker) {
+		return new Builder(maker);
+	}
+
+	@Override
+	public Validator newValidator(String identifier) {
+		Validator v = maker.newValidator(identifier);
+		return v==null?null:new CachingValidator(v, identifier);
+	}
+
+	@Override
+	public Optional<Validator> newValidator(FileDetails details) {
+		return maker.newValidator(details).map(v->new CachingValidator(v, toIdentifier(v, details)));
+	}
+
+	private static String toIdentifier(Validator v, FileDetails details) {
+		// The selected factory isn't known, but is determined by the details signature
+		return v.getClass().getName() + '\t' + details.getFormatName() + '\t' + details.getMediaType() + '\t' + details.getExtension();
+	}
+
+	@Override
+	public Collection<String> listIdentifiers() {
+		return maker.listIdentifiers();
+	}
+
+	/**
+	 * Removes all reports from the cache, including stored reports.
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+		if (storage.isPresent() && Files.isDirectory(storage.get())) {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(storage.get(), "*" + STORAGE_SUFFIX)) {
+				for (Path p : ds) {
+					Files.deleteIfExists(p);
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to clear validation cache: " + storage.get(), e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of reports in the in-memory cache.
+	 * @return the number of reports
+	 */
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	private final class CachingValidator implements Validator {
+		private final Validator validator;
+		private final String identifier;
+
+		private CachingValidator(Validator validator, String identifier) {
+			this.validator = validator;
+			this.identifier = identifier;
+		}
+
+		private Optional<String> toKey(URL input, Map<String, Object> options) {
+			try (InputStream is = input.openStream()) {
+				return Optional.of(CachingValidatorFactoryMaker.toKey(is, identifier, options));
+			} catch (IOException e) {
+				if (logger.isLoggable(Level.FINE)) {
+					logger.log(Level.FINE, "Cannot cache validation of " + input, e);
+				}
+				return Optional.empty();
+			}
+		}
+
+		private Optional<String> toKey(InputStreamSupplier input, Map<String, Object> options) {
+			try (InputStream is = input.newInputStream()) {
+				return Optional.of(CachingValidatorFactoryMaker.toKey(is, identifier, options));
+			} catch (IOException e) {
+				if (logger.isLoggable(Level.FINE)) {
+					logger.log(Level.FINE, "Cannot cache validation of " + input.getSystemId(), e);
+				}
+				return Optional.empty();
+			}
+		}
+
+		@Override
+		public ValidationReport validate(URL input, Map<String, Object> options) {
+			Optional<String> key = toKey(input, options);
+			Optional<ValidationReport> cached = key.flatMap(k->get(k));
+			if (cached.isPresent()) {
+				return withSource(cached.get(), input);
+			}
+			ValidationReport ret = validator.validate(input, options);
+			key.ifPresent(k->put(k, ret));
+			return ret;
+		}
+
+		@Override
+		public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options) {
+			Optional<String> key = toKey(input, options);
+			Optional<ValidationReport> cached = key.flatMap(k->get(k));
+			if (cached.isPresent()) {
+				return cached.get();
+			}
+			ValidationReport ret = validator.validate(input, options);
+			key.ifPresent(k->put(k, ret));
+			return ret;
+		}
+
+		@Override
+		public ValidationReport validate(URL input, Map<String, Object> options, ValidationListener listener) {
+			Optional<String> key = toKey(input, options);
+			Optional<ValidationReport> cached = key.flatMap(k->get(k));
+			if (cached.isPresent()) {
+				return ValidationReport.replay(withSource(cached.get(), input), listener);
+			}
+			ValidationReport ret = validator.validate(input, options, listener);
+			key.ifPresent(k->put(k, ret));
+			return ret;
+		}
+
+		@Override
+		public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options, ValidationListener listener) {
+			Optional<String> key = toKey(input, options);
+			Optional<ValidationReport> cached = key.flatMap(k->get(k));
+			if (cached.isPresent()) {
+				return ValidationReport.replay(cached.get(), listener);
+			}
+			ValidationReport ret = validator.validate(input, options, listener);
+			key.ifPresent(k->put(k, ret));
+			return ret;
+		}
+
+		@Override
+		public CompletableFuture<ValidationReport> validateAsync(URL input, Map<String, Object> options, Executor executor, Duration timeout) {
+			Optional<String> key = toKey(input, options);
+			Optional<ValidationReport> cached = key.flatMap(k->get(k));
+			if (cached.isPresent()) {
+				return CompletableFuture.completedFuture(withSource(cached.get(), input));
+			}
+			// Return the validator's own future, so that cancelling it reaches the validator
+			CompletableFuture<ValidationReport> ret = validator.validateAsync(input, options, executor, timeout);
+			key.ifPresent(k->ret.thenAccept(r->put(k, r)));
+			return ret;
+		}
+
+		@Override
+		public CompletableFuture<ValidationReport> validateAsync(InputStreamSupplier input, Map<String, Object> options, Executor executor, Duration timeout) {
+			Optional<String> key = toKey(input, options);
+			Optional<ValidationReport> cached = key.flatMap(k->get(k));
+			if (cached.isPresent()) {
+				return CompletableFuture.completedFuture(cached.get());
+			}
+			CompletableFuture<ValidationReport> ret = validator.validateAsync(input, options, executor, timeout);
+			key.ifPresent(k->ret.thenAccept(r->put(k, r)));
+			return ret;
+		}
+
+		@Override
+		public void reset() {
+			validator.reset();
+		}
+
+		@Override
+		public List<UserOption> listOptions() {
+			return validator.listOptions();
+		}
+	}
+
+	private Optional<ValidationReport> get(String key) {
+		ValidationReport ret;
+		synchronized (cache) {
+			ret = cache.get(key);
+		}
+		if (ret==null && storage.isPresent()) {
+			try {
+				Path f = toStoragePath(storage.get(), key);
+				ret = read(f, key);
+				if (ret!=null) {
+					// Keeps recently used reports when the storage is trimmed
+					Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis()));
+				}
+			} catch (NoSuchFileException e) {
+				// no action needed
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to read cached validation report.", e);
+			}
+			if (ret!=null) {
+				synchronized (cache) {
+					cache.put(key, ret);
+				}
+			}
+		}
+		return Optional.ofNullable(ret);
+	}
+
+	private void put(String key, ValidationReport report) {
+		if (report.isAborted() || report.getOmittedCount()>0) {
+			return;
+		}
+		synchronized (cache) {
+			cache.put(key, report);
+		}
+		if (storage.isPresent()) {
+			try {
+				Files.createDirectories(storage.get());
+				Path f = toStoragePath(storage.get(), key);
+				boolean added = !Files.exists(f);
+				write(f, key, report);
+				if (added) {
+					trimStorage(storage.get());
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to store validation report.", e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used stored reports, if there are more
+	 * than the maximum number of entries.
+	 * @param dir the storage folder
+	 * @throws IOException if the folder could not be listed
+	 */
+	private void trimStorage(Path dir) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + STORAGE_SUFFIX)) {
+			ds.forEach(files::add);
+		}
+		if (files.size()<=maxEntries) {
+			return;
+		}
+		Map<Path, FileTime> modified = new HashMap<>();
+		for (Path p : files) {
+			try {
+				modified.put(p, Files.getLastModifiedTime(p));
+			} catch (IOException e) {
+				// Removed by someone else
+				modified.put(p, FileTime.fromMillis(0));
+			}
+		}
+		files.sort(Comparator.comparing(modified::get));
+		for (Path p : files.subList(0, files.size()-maxEntries)) {
+			Files.deleteIfExists(p);
+		}
+	}
+
+	private static ValidationReport withSource(ValidationReport report, URL source) {
+		if (Objects.equals(report.getSource(), source)) {
+			return report;
+		}
+		ValidationReport.Builder ret = new ValidationReport.Builder(source).valid(report.isValid());
+		report.getMessages().forEach(ret::addMessage);
+		return ret.build();
+	}
+
+	private static String toKey(InputStream is, String identifier, Map<String, Object> options) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+			byte[] b = new byte[8192];
+			int len;
+			while ((len = is.read(b))>-1) {
+				md.update(b, 0, len);
+			}
+			return toHex(md.digest()) + '\n' + identifier + '\n' + toString(options);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toString(Map<String, Object> options) {
+		if (options==null || options.isEmpty()) {
+			return "{}";
+		}
+		// Sort the options so that the key doesn't depend on the map implementation
+		Map<String, Object> sorted = new TreeMap<>(Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+		sorted.putAll(options);
+		return sorted.toString();
+	}
+
+	private static Path toStoragePath(Path dir, String key) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+			return dir.resolve(toHex(md.digest(key.getBytes(StandardCharsets.UTF_8))) + STORAGE_SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] value) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : value) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static ValidationReport read(Path f, String key) throws IOException {
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
+			if (is.readInt()!=MAGIC) {
+				throw new IOException("Not a validation report: " + f);
+			}
+			if (!key.equals(readText(is))) {
+				// Different key with the same file name
+				return null;
+			}
+			String source = readString(is);
+			ValidationReport.Builder ret = new ValidationReport.Builder(source==null?null:new URL(source))
+					.valid(is.readBoolean());
+			int count = is.readInt();
+			Type[] types = Type.values();
+			for (int i=0; i<count; i++) {
+				ValidatorMessage.Builder m = ValidatorMessage.with(types[is.readByte()]);
+				m.message(readString(is));
+				int line = is.readInt();
+				if (line>-1) {
+					m.lineNumber(line);
+				}
+				int column = is.readInt();
+				if (column>-1) {
+					m.columnNumber(column);
+				}
+				String uri = readString(is);
+				if (uri!=null) {
+					m.uri(new URI(uri));
+				}
+				ret.addMessage(m.build());
+			}
+			return ret.build();
+		} catch (URISyntaxException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Failed to read validation report: " + f, e);
+		}
+	}
+
+	private static void write(Path f, String key, ValidationReport report) throws IOException {
+		Path tmp = Files.createTempFile(f.toAbsolutePath().getParent(), "validation-", ".tmp");
+		try {
+			try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				os.writeInt(MAGIC);
+				writeText(os, key);
+				writeString(os, report.getSource()==null?null:report.getSource().toString());
+				os.writeBoolean(report.isValid());
+				os.writeInt(report.getMessages().size());
+				for (ValidatorMessage m : report.getMessages()) {
+					os.writeByte(m.getType().ordinal());
+					writeString(os, m.getMessage().orElse(m.getException().map(Exception::toString).orElse(null)));
+					os.writeInt(m.getLineNumber());
+					os.writeInt(m.getColumnNumber());
+					writeString(os, m.getURI().map(URI::toString).orElse(null));
+				}
+			}
+			Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static String readString(DataInputStream is) throws IOException {
+		return is.readBoolean()?readText(is):null;
+	}
+
+	private static void writeString(DataOutputStream os, String value) throws IOException {
+		os.writeBoolean(value!=null);
+		if (value!=null) {
+			writeText(os, value);
+		}
+	}
+
+	private static String readText(DataInputStream is) throws IOException {
+		int len = is.readInt();
+		if (len<0) {
+			throw new IOException("Invalid string length: " + len);
+		}
+		byte[] b = new byte[len];
+		is.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeText(DataOutputStream os, String value) throws IOException {
+		// Not using writeUTF, since it's limited to 64k
+		byte[] b = value.getBytes(StandardCharsets.UTF_8);
+		os.writeInt(b.length);
+		os.write(b);
+	}
+
+}
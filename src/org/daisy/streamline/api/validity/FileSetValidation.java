@@ -0,0 +1,382 @@
+package org.daisy.streamline.api.validity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.FileSet;
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+
+/**
+ * <p>Provides validation of all resources in a file set. A validator is
+ * selected for each resource using a {@link ValidatorFactoryMakerService}
+ * and the resources are validated in parallel, each with its own validator
+ * instance.</p>
+ *
+ * <p>The result is a {@link FileSetValidationReport} containing the report
+ * of each resource and a combined report for the file set. The combined report
+ * lists the messages of the manifest first, followed by the messages of the
+ * other resources in path order, regardless of the order in which the
+ * validations complete.</p>
+ *
+ * <p>An instance can be configured to validate incrementally (see {@link Builder#incremental(boolean)}),
+ * which is useful when the same file set is validated repeatedly with small changes in between.</p>
+ *
+ * @author Joel Håkansson
+ */
+public final class FileSetValidation {
+	private static final Logger logger = Logger.getLogger(FileSetValidation.class.getCanonicalName());
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private final ValidatorFactoryMakerService maker;
+	private final int parallelism;
+	private final Optional<ExecutorService> executor;
+	private final Map<String, Object> options;
+	private final boolean incremental;
+	private final BiFunction<FileSet, String, Collection<String>> dependencies;
+	private final Map<String, HistoryEntry> history;
+
+	private static final class HistoryEntry {
+		private final byte[] fingerprint;
+		private final ValidationReport report;
+		private final Set<String> dependencies;
+
+		private HistoryEntry(byte[] fingerprint, ValidationReport report, Collection<String> dependencies) {
+			this.fingerprint = fingerprint;
+			this.report = report;
+			this.dependencies = new HashSet<>(dependencies);
+		}
+	}
+
+	/**
+	 * Provides a builder for file set validation.
+	 */
+	public static class Builder {
+		private final ValidatorFactoryMakerService maker;
+		private int parallelism = Runtime.getRuntime().availableProcessors();
+		private ExecutorService executor = null;
+		private final Map<String, Object> options = new HashMap<>();
+		private boolean incremental = false;
+		private BiFunction<FileSet, String, Collection<String>> dependencies = (fs, path)->Collections.emptySet();
+
+		private Builder(ValidatorFactoryMakerService maker) {
+			this.maker = Objects.requireNonNull(maker);
+		}
+
+		/**
+		 * Sets the maximum number of resources to validate at the same time.
+		 * Defaults to the number of available processors. This value is only
+		 * used if no executor is set.
+		 * @param value the parallelism
+		 * @return this builder
+		 * @throws IllegalArgumentException if value is less than 1
+		 */
+		public Builder parallelism(int value) {
+			if (value<1) {
+				throw new IllegalArgumentException("Value must be greater than 0: " + value);
+			}
+			this.parallelism = value;
+			return this;
+		}
+
+		/**
+		 * Sets the executor to run validations on. If no executor is
+		 * set, a new thread pool is created for each call to validate and
+		 * shut down when validation is done. A supplied executor is never
+		 * shut down by this class.
+		 * @param value the executor
+		 * @return this builder
+		 */
+		public Builder executor(ExecutorService value) {
+			this.executor = value;
+			return this;
+		}
+
+		/**
+		 * Sets the validation options to use for every resource.
+		 * @param value the options
+		 * @return this builder
+		 */
+		public Builder options(Map<String, Object> value) {
+			this.options.clear();
+			this.options.putAll(value);
+			return this;
+		}
+
+		/**
+		 * Sets whether or not validation should be incremental. In incremental
+		 * mode, the last report for each resource and validator is kept together with
+		 * a fingerprint of its contents, and resources that haven't changed are not
+		 * validated again. Only reports of validations that completed are kept. Default
+		 * is false.
+		 * @param value true if validation should be incremental, false otherwise
+		 * @return this builder
+		 */
+		public Builder incremental(boolean value) {
+			this.incremental = value;
+			return this;
+		}
+
+		/**
+		 * Sets the function that lists the dependencies of a resource. The function
+		 * is given the file set and the path of a resource and returns the paths of the
+		 * resources in the file set that it depends on. In incremental mode, a resource
+		 * is validated if any of its dependencies has changed. By default, resources
+		 * have no dependencies.
+		 * @param value the function
+		 * @return this builder
+		 */
+		public Builder dependencies(BiFunction<FileSet, String, Collection<String>> value) {
+			this.dependencies = Objects.requireNonNull(value);
+			return this;
+		}
+
+		/**
+		 * Builds a new instance based on the current state of this builder.
+		 * @return a new instance
+		 */
+		public FileSetValidation build() {
+			return new FileSetValidation(this);
+		}
+	}
+
+	private FileSetValidation(Builder builder) {
+		this.maker = builder.maker;
+		this.parallelism = builder.parallelism;
+		this.executor = Optional.ofNullable(builder.executor);
+		this.options = Collections.unmodifiableMap(new HashMap<>(builder.options));
+		this.incremental = builder.incremental;
+		this.dependencies = builder.dependencies;
+		this.history = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Creates a new builder with the specified validator factory maker.
+	 * @param maker the validator factory maker
+	 * @return a new builder
+	 * @throws NullPointerException if maker is null
+	 */
+	public static Builder with(ValidatorFactoryMakerService maker) {
+		return new Builder(maker);
+	}
+
+	/**
+	 * <p>Validates all resources in the specified file set. Resources for which no
+	 * validator is available are listed in {@link FileSetValidationReport#getUnvalidatedResources()}.
+	 * A validator that fails with an exception results in a report with a fatal error
+	 * for that resource.</p>
+	 * <p>In incremental mode, a resource is only validated if its contents have
+	 * changed since it was last validated by this instance, or if it depends on
+	 * a resource that is validated or that has been removed from the file set. For
+	 * other resources, the previous report is used.</p>
+	 * @param fileSet the file set
+	 * @return a validation report for the file set
+	 * @throws CancellationException if the thread is interrupted while waiting
+	 * 		for validation to complete
+	 */
+	public FileSetValidationReport validate(FileSet fileSet) {
+		List<String> paths = new ArrayList<>(fileSet.getResourcePaths());
+		paths.remove(fileSet.getManifestPath());
+		Collections.sort(paths);
+		paths.add(0, fileSet.getManifestPath());
+
+		ExecutorService exec = executor.orElseGet(()->Executors.newFixedThreadPool(parallelism, r->{
+			Thread t = new Thread(r, "validation");
+			t.setDaemon(true);
+			return t;
+		}));
+		try {
+			Map<String, AnnotatedFile> files = new LinkedHashMap<>();
+			Map<String, Validator> validators = new HashMap<>();
+			for (String path : paths) {
+				fileSet.getResourceForKey(path).ifPresent(v->{
+					files.put(path, v);
+					maker.newValidator(v).ifPresent(x->validators.put(path, x));
+				});
+			}
+			Map<String, byte[]> fingerprints = new HashMap<>();
+			Map<String, HistoryEntry> unchanged = new HashMap<>();
+			if (incremental) {
+				findUnchanged(files, validators, exec, fingerprints, unchanged);
+			}
+			Map<String, CompletableFuture<ValidationReport>> tasks = new LinkedHashMap<>();
+			FileSetValidationReport.Builder ret = new FileSetValidationReport.Builder(new ValidationReport.Builder(toURL(fileSet.getManifest())));
+			for (String path : paths) {
+				AnnotatedFile file = files.get(path);
+				Validator validator = validators.get(path);
+				HistoryEntry h = unchanged.get(path);
+				if (h!=null) {
+					tasks.put(path, CompletableFuture.completedFuture(h.report));
+				} else if (validator!=null) {
+					byte[] fingerprint = fingerprints.get(path);
+					tasks.put(path, CompletableFuture.supplyAsync(()->{
+						try {
+							ValidationReport report = validate(validator, file);
+							// Reports of validations that didn't complete are not reused
+							if (fingerprint!=null && !report.isAborted()) {
+								history.put(toHistoryKey(file, validator), new HistoryEntry(fingerprint, report, dependencies.apply(fileSet, path)));
+							}
+							return report;
+						} catch (Exception e) {
+							if (logger.isLoggable(Level.FINE)) {
+								logger.log(Level.FINE, "Validation failed: " + file.getPath(), e);
+							}
+							return new ValidationReport.Builder(toURL(file))
+									.addMessage(ValidatorMessage.with(Type.FATAL_ERROR).exception(e).build())
+									.build();
+						}
+					}, exec));
+				} else {
+					tasks.put(path, null);
+				}
+			}
+			for (Map.Entry<String, CompletableFuture<ValidationReport>> e : tasks.entrySet()) {
+				if (e.getValue()==null) {
+					ret.unvalidated(e.getKey());
+				} else {
+					ret.add(e.getKey(), join(e.getValue()));
+				}
+			}
+			return ret.build();
+		} finally {
+			if (!executor.isPresent()) {
+				exec.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Finds the resources that don't need to be validated again.
+	 * @param files the resources, by path
+	 * @param validators the selected validators, by path
+	 * @param exec the executor to compute fingerprints on
+	 * @param fingerprints receives the fingerprints of the resources, by path
+	 * @param unchanged receives the previous validation of unchanged resources, by path
+	 */
+	private void findUnchanged(Map<String, AnnotatedFile> files, Map<String, Validator> validators, ExecutorService exec, Map<String, byte[]> fingerprints, Map<String, HistoryEntry> unchanged) {
+		Map<String, CompletableFuture<byte[]>> tasks = new LinkedHashMap<>();
+		files.forEach((path, file)->tasks.put(path, CompletableFuture.supplyAsync(()->fingerprint(file), exec)));
+		Set<String> changed = new HashSet<>();
+		for (Map.Entry<String, CompletableFuture<byte[]>> e : tasks.entrySet()) {
+			String path = e.getKey();
+			byte[] fingerprint = join(e.getValue());
+			Validator validator = validators.get(path);
+			HistoryEntry h = validator!=null?history.get(toHistoryKey(files.get(path), validator)):null;
+			if (fingerprint!=null) {
+				fingerprints.put(path, fingerprint);
+			}
+			if (h!=null && fingerprint!=null && Arrays.equals(h.fingerprint, fingerprint)) {
+				unchanged.put(path, h);
+			} else {
+				changed.add(path);
+			}
+		}
+		// Resources that depend on a changed resource must be validated as well.
+		// A dependency that is no longer in the file set counts as changed.
+		Map<String, Set<String>> dependents = new HashMap<>();
+		unchanged.forEach((path, h)->h.dependencies.forEach(d->{
+			dependents.computeIfAbsent(d, k->new HashSet<>()).add(path);
+			if (!files.containsKey(d)) {
+				changed.add(d);
+			}
+		}));
+		Deque<String> queue = new ArrayDeque<>(changed);
+		while (!queue.isEmpty()) {
+			for (String d : dependents.getOrDefault(queue.poll(), Collections.emptySet())) {
+				if (unchanged.remove(d)!=null) {
+					queue.add(d);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all stored validation results used in incremental mode.
+	 */
+	public void clearHistory() {
+		history.clear();
+	}
+
+	private static String toHistoryKey(AnnotatedFile file, Validator validator) {
+		// Selected validators are identified by their class and the details used to select them
+		return file.getPath().toAbsolutePath().normalize().toString()
+				+ '\t' + validator.getClass().getName()
+				+ '\t' + file.getFormatName() + '\t' + file.getMediaType() + '\t' + file.getExtension();
+	}
+
+	private static byte[] fingerprint(AnnotatedFile file) {
+		try (InputStream is = Files.newInputStream(file.getPath())) {
+			MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+			byte[] b = new byte[8192];
+			int len;
+			while ((len = is.read(b))>-1) {
+				md.update(b, 0, len);
+			}
+			return md.digest();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			if (logger.isLoggable(Level.FINE)) {
+				logger.log(Level.FINE, "Failed to compute fingerprint: " + file.getPath(), e);
+			}
+			return null;
+		}
+	}
+
+	private ValidationReport validate(Validator validator, AnnotatedFile file) throws MalformedURLException {
+		URL url = toURL(file);
+		if (url==null) {
+			throw new MalformedURLException("Cannot convert path to URL: " + file.getPath());
+		}
+		return validator.validate(url, options);
+	}
+
+	private static <T> T join(CompletableFuture<T> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			CancellationException ex = new CancellationException("Interrupted while waiting for validation.");
+			ex.initCause(e);
+			throw ex;
+		} catch (ExecutionException e) {
+			// Exceptions are caught in validate, so this is unexpected
+			throw new CompletionException(e.getCause());
+		}
+	}
+
+	private static URL toURL(AnnotatedFile file) {
+		try {
+			return file.getPath().toUri().toURL();
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+}
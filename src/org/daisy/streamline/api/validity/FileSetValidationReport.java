@@ -0,0 +1,135 @@
+package org.daisy.streamline.api.validity;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Provides a validation report for a file set. The report contains
+ * a report for each validated resource and a combined report for
+ * the entire file set.
+ * @author Joel Håkansson
+ */
+public final class FileSetValidationReport {
+	private final ValidationReport combined;
+	private final Map<String, ValidationReport> reports;
+	private final Set<String> unvalidated;
+
+	/**
+	 * Provides a builder for file set validation reports.
+	 */
+	static class Builder {
+		private final ValidationReport.Builder combined;
+		private final Map<String, ValidationReport> reports = new LinkedHashMap<>();
+		private final Set<String> unvalidated = new TreeSet<>();
+
+		/**
+		 * Creates a new builder.
+		 * @param combined the builder for the combined report
+		 */
+		Builder(ValidationReport.Builder combined) {
+			this.combined = combined;
+		}
+
+		/**
+		 * Adds a report for the resource at the specified path.
+		 * @param path the path
+		 * @param report the report
+		 * @return this builder
+		 */
+		Builder add(String path, ValidationReport report) {
+			reports.put(path, report);
+			for (ValidatorMessage m : report.getMessages()) {
+				combined.addMessage(m.getURI().isPresent()?m:ValidatorMessage.with(m).uri(toURI(path)).build());
+			}
+			combined.addOmitted(report);
+			if (!report.isValid()) {
+				combined.valid(false);
+			}
+			if (report.isAborted()) {
+				combined.aborted(true);
+			}
+			return this;
+		}
+
+		/**
+		 * Adds a resource for which no validator was available.
+		 * @param path the path
+		 * @return this builder
+		 */
+		Builder unvalidated(String path) {
+			unvalidated.add(path);
+			return this;
+		}
+
+		private static URI toURI(String path) {
+			try {
+				return new URI(null, null, path.replace('\\', '/'), null);
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		FileSetValidationReport build() {
+			return new FileSetValidationReport(this);
+		}
+	}
+
+	private FileSetValidationReport(Builder builder) {
+		this.combined = builder.combined.build();
+		this.reports = Collections.unmodifiableMap(new LinkedHashMap<>(builder.reports));
+		this.unvalidated = Collections.unmodifiableSet(new TreeSet<>(builder.unvalidated));
+	}
+
+	/**
+	 * Returns true if all validated resources are valid, false otherwise.
+	 * @return returns true if the file set is valid, false otherwise
+	 */
+	public boolean isValid() {
+		return combined.isValid();
+	}
+
+	/**
+	 * Gets the combined report. The messages of each resource are included
+	 * in this report. Messages that apply to the validated resource itself
+	 * have the path of the resource as their URI. The messages omitted from
+	 * the resource reports are counted in the omitted messages of this report
+	 * (see {@link ValidationReport#getOmittedCount()}).
+	 * @return returns the combined report
+	 */
+	public ValidationReport getCombinedReport() {
+		return combined;
+	}
+
+	/**
+	 * Gets the reports of the validated resources, by resource path.
+	 * @return returns a map of reports
+	 */
+	public Map<String, ValidationReport> getResourceReports() {
+		return reports;
+	}
+
+	/**
+	 * Gets the report for the resource at the specified path.
+	 * @param path the path
+	 * @return returns the report, or an empty optional if the resource
+	 * 		wasn't validated
+	 */
+	public Optional<ValidationReport> getResourceReport(String path) {
+		return Optional.ofNullable(reports.get(path));
+	}
+
+	/**
+	 * Gets the paths of the resources for which a validator wasn't available.
+	 * @return returns a set of paths
+	 */
+	public Set<String> getUnvalidatedResources() {
+		return unvalidated;
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.daisy.streamline.api.validity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+
+/**
+ * Provides a bounded summary of validation messages. Messages are counted
+ * by type and message template, and their line and column numbers are
+ * stored in primitive arrays.
+ * @author Joel Håkansson
+ */
+final class MessageAggregator {
+	private static final Pattern QUOTED_SINGLE = Pattern.compile("'[^']*'");
+	private static final Pattern QUOTED_DOUBLE = Pattern.compile("\"[^\"]*\"");
+	private static final Pattern DIGITS = Pattern.compile("\\d+");
+	private static final int MAX_TEMPLATES = 1000;
+	private final long[] counts;
+	private final Map<Type, Map<String, long[]>> templates;
+	private final int maxPositions;
+	private int templateCount;
+	private int[] lines;
+	private int[] columns;
+	private int positions;
+
+	MessageAggregator(int maxPositions) {
+		this.counts = new long[Type.values().length];
+		this.templates = new EnumMap<>(Type.class);
+		this.maxPositions = maxPositions;
+		this.templateCount = 0;
+		this.lines = new int[0];
+		this.columns = new int[0];
+		this.positions = 0;
+	}
+
+	/**
+	 * Creates a message template by replacing numbers and quoted strings
+	 * in the message with placeholders.
+	 * @param message the message
+	 * @return the message template, or null if the message is null
+	 */
+	static String toTemplate(String message) {
+		if (message==null) {
+			return null;
+		}
+		String ret = QUOTED_SINGLE.matcher(message).replaceAll("'*'");
+		ret = QUOTED_DOUBLE.matcher(ret).replaceAll("\"*\"");
+		return DIGITS.matcher(ret).replaceAll("#");
+	}
+
+	void add(ValidatorMessage m) {
+		counts[m.getType().ordinal()]++;
+		count(m.getType(), toTemplate(m.getMessage().orElse(m.getException().map(v->v.getMessage()).orElse(null))), 1);
+		if (m.getLineNumber()>-1 || m.getColumnNumber()>-1) {
+			position(m.getLineNumber(), m.getColumnNumber());
+		}
+	}
+
+	/**
+	 * Adds the omitted messages of the specified report.
+	 * @param report the report
+	 */
+	void addOmitted(ValidationReport report) {
+		for (Type t : Type.values()) {
+			counts[t.ordinal()] += report.getOmittedCount(t);
+		}
+		for (ValidatorMessageCount c : report.getOmittedMessageCounts()) {
+			count(c.getType(), c.getTemplate().orElse(null), c.getCount());
+		}
+		int[] l = report.getOmittedLineNumbers();
+		int[] c = report.getOmittedColumnNumbers();
+		for (int i=0; i<l.length; i++) {
+			position(l[i], c[i]);
+		}
+	}
+
+	private void count(Type type, String template, long n) {
+		Map<String, long[]> t = templates.computeIfAbsent(type, k->new LinkedHashMap<>());
+		long[] c = t.get(template);
+		if (c==null) {
+			if (templateCount>=MAX_TEMPLATES) {
+				// Count it as other, to keep the number of templates bounded
+				c = t.computeIfAbsent(null, k->new long[1]);
+			} else {
+				c = new long[1];
+				t.put(template, c);
+				templateCount++;
+			}
+		}
+		c[0]+=n;
+	}
+
+	private void position(int line, int column) {
+		if (positions<maxPositions) {
+			if (positions==lines.length) {
+				int size = (int)Math.min(maxPositions, Math.max(16, lines.length * 2L));
+				lines = Arrays.copyOf(lines, size);
+				columns = Arrays.copyOf(columns, size);
+			}
+			lines[positions] = line;
+			columns[positions] = column;
+			positions++;
+		}
+	}
+
+	long getCount(Type type) {
+		return counts[type.ordinal()];
+	}
+
+	List<ValidatorMessageCount> getMessageCounts() {
+		List<ValidatorMessageCount> ret = new ArrayList<>();
+		templates.forEach((type, t)->t.forEach((template, c)->ret.add(new ValidatorMessageCount(type, template, c[0]))));
+		return Collections.unmodifiableList(ret);
+	}
+
+	int[] getLineNumbers() {
+		return Arrays.copyOf(lines, positions);
+	}
+
+	int[] getColumnNumbers() {
+		return Arrays.copyOf(columns, positions);
+	}
+
+}
@@ -0,0 +1,66 @@
+package org.daisy.streamline.api.validity;
+
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+
+/**
+ * <p>Provides a listener for validation messages. The listener receives
+ * the messages as they are produced by a validator and decides if
+ * validation should continue.</p>
+ *
+ * <p>A listener may be stateful, in which case a new instance should be
+ * used for each validation.</p>
+ *
+ * @author Joel Håkansson
+ */
+@FunctionalInterface
+public interface ValidationListener {
+
+	/**
+	 * Receives a validation message.
+	 * @param message the message
+	 * @return true if validation should continue, false if it should stop
+	 */
+	public boolean onMessage(ValidatorMessage message);
+
+	/**
+	 * Creates a listener that stops validation when a fatal error is received.
+	 * @return a new listener
+	 */
+	public static ValidationListener stopOnFatalError() {
+		return m->m.getType()!=Type.FATAL_ERROR;
+	}
+
+	/**
+	 * Creates a listener that stops validation when the specified number of
+	 * messages that are cause for invalidity have been received.
+	 * @param n the number of messages
+	 * @return a new listener
+	 * @throws IllegalArgumentException if n is less than 1
+	 */
+	public static ValidationListener stopAfterErrors(int n) {
+		if (n<1) {
+			throw new IllegalArgumentException("Value must be greater than 0: " + n);
+		}
+		return new ValidationListener() {
+			private int errors = 0;
+			@Override
+			public boolean onMessage(ValidatorMessage message) {
+				if (message.getType().causeForInvalidity()) {
+					errors++;
+				}
+				return errors<n;
+			}
+		};
+	}
+
+	/**
+	 * Creates a listener that first passes the message to this listener and then,
+	 * if this listener doesn't stop validation, to the other listener.
+	 * @param other the other listener
+	 * @return a new listener
+	 */
+	public default ValidationListener and(ValidationListener other) {
+		return m->onMessage(m) && other.onMessage(m);
+	}
+
+}
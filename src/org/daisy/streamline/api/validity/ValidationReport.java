@@ -5,15 +5,28 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+
 /**
- * Provides a validation report.
+ * <p>Provides a validation report.</p>
+ * 
+ * <p>By default, a report contains every message that was added to it. To
+ * bound the memory used by a report, the number of messages kept in full can
+ * be limited with {@link Builder#maxMessages(int)}. Messages beyond the limit
+ * are counted by type and message template, and their line and column numbers
+ * are kept in compact arrays (see {@link #getOmittedCount()}).</p>
  * @author Joel Håkansson
  *
  */
 public final class ValidationReport {
 	private final URL source;
 	private final boolean valid;
+	private final boolean aborted;
 	private final List<ValidatorMessage> messages;
+	private final long[] omitted;
+	private final List<ValidatorMessageCount> omittedMessages;
+	private final int[] omittedLines;
+	private final int[] omittedColumns;
 
 	/**
 	 * Provides a validation report builder.
@@ -21,7 +34,11 @@ public final class ValidationReport {
 	public static class Builder {
 		private final URL source;
 		private boolean valid = true;
+		private boolean aborted = false;
 		private final List<ValidatorMessage> messages = new ArrayList<>();
+		private int maxMessages = Integer.MAX_VALUE;
+		private int maxPositions = 100000;
+		private MessageAggregator omitted = null;
 		
 		/**
 		 * Creates a new builder for validation reports. Initially, 
@@ -42,6 +59,56 @@ public final class ValidationReport {
 			return this;
 		}
 
+		/**
+		 * Sets the aborted property of the builder, defaults to false. A
+		 * report should be marked as aborted if validation was stopped
+		 * before it was completed.
+		 * @param value true if validation was aborted, false otherwise
+		 * @return returns this builder
+		 */
+		public Builder aborted(boolean value) {
+			this.aborted = value;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of messages to keep in full. Additional
+		 * messages are only counted. Defaults to no limit.
+		 * @param value the maximum number of messages
+		 * @return returns this builder
+		 * @throws IllegalArgumentException if value is less than 0
+		 * @throws IllegalStateException if messages have already been added
+		 */
+		public Builder maxMessages(int value) {
+			if (value<0) {
+				throw new IllegalArgumentException("Value must be greater than or equal to 0.");
+			}
+			if (!messages.isEmpty()) {
+				throw new IllegalStateException("Messages have already been added.");
+			}
+			this.maxMessages = value;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of line and column positions to keep
+		 * for messages that are not kept in full. Defaults to 100000.
+		 * @param value the maximum number of positions
+		 * @return returns this builder
+		 * @throws IllegalArgumentException if value is less than 0
+		 * @throws IllegalStateException if messages have already been added
+		 */
+		public Builder maxPositions(int value) {
+			if (value<0) {
+				throw new IllegalArgumentException("Value must be greater than or equal to 0.");
+			}
+			if (!messages.isEmpty()) {
+				throw new IllegalStateException("Messages have already been added.");
+			}
+			this.maxPositions = value;
+			return this;
+		}
+
 		/**
 		 * Adds a validation message to this builder. This method will check
 		 * if the message causes invalidity, and if so sets valid to false.
@@ -49,13 +116,42 @@ public final class ValidationReport {
 		 * @return returns this builder
 		 */
 		public Builder addMessage(ValidatorMessage value) {
-			this.messages.add(value);
+			if (messages.size()<maxMessages) {
+				this.messages.add(value);
+			} else {
+				if (omitted==null) {
+					omitted = new MessageAggregator(maxPositions);
+				}
+				omitted.add(value);
+			}
 			if (value.getType().causeForInvalidity()) {
 				this.valid = false;
 			}
 			return this;
 		}
 
+		/**
+		 * Adds the counts and positions of the messages that were omitted
+		 * from the specified report to the omitted messages of this builder.
+		 * The messages kept in full are not added.
+		 * @param report the report
+		 * @return returns this builder
+		 */
+		Builder addOmitted(ValidationReport report) {
+			if (report.omitted!=null) {
+				if (omitted==null) {
+					omitted = new MessageAggregator(maxPositions);
+				}
+				omitted.addOmitted(report);
+				for (Type t : Type.values()) {
+					if (t.causeForInvalidity() && report.getOmittedCount(t)>0) {
+						this.valid = false;
+					}
+				}
+			}
+			return this;
+		}
+
 		/**
 		 * Builds the validation report based on the current state of the builder.
 		 * @return returns a new validation report
@@ -68,7 +164,40 @@ public final class ValidationReport {
 	private ValidationReport(Builder builder) {
 		this.source = builder.source;
 		this.valid = builder.valid;
+		this.aborted = builder.aborted;
 		this.messages = Collections.unmodifiableList(new ArrayList<>(builder.messages));
+		if (builder.omitted!=null) {
+			this.omitted = new long[Type.values().length];
+			for (Type t : Type.values()) {
+				this.omitted[t.ordinal()] = builder.omitted.getCount(t);
+			}
+			this.omittedMessages = builder.omitted.getMessageCounts();
+			this.omittedLines = builder.omitted.getLineNumbers();
+			this.omittedColumns = builder.omitted.getColumnNumbers();
+		} else {
+			this.omitted = null;
+			this.omittedMessages = Collections.emptyList();
+			this.omittedLines = new int[0];
+			this.omittedColumns = new int[0];
+		}
+	}
+	
+	/**
+	 * Delivers the messages of a report to a listener, until the listener
+	 * stops validation.
+	 * @param report the report
+	 * @param listener the listener
+	 * @return a report with the messages that were delivered to the listener
+	 */
+	static ValidationReport replay(ValidationReport report, ValidationListener listener) {
+		Builder ret = new Builder(report.getSource());
+		for (ValidatorMessage m : report.getMessages()) {
+			ret.addMessage(m);
+			if (!listener.onMessage(m)) {
+				return ret.aborted(true).build();
+			}
+		}
+		return report;
 	}
 	
 	/**
@@ -87,6 +216,16 @@ public final class ValidationReport {
 		return valid;
 	}
 	
+	/**
+	 * Returns true if validation was stopped before it was completed. If so,
+	 * the report may not contain all problems in the source and a report
+	 * without invalidating messages doesn't imply that the source is valid.
+	 * @return returns true if validation was aborted, false otherwise
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+	
 	/**
 	 * Gets the messages in this report.
 	 * @return returns a list of messages
@@ -94,5 +233,60 @@ public final class ValidationReport {
 	public List<ValidatorMessage> getMessages() {
 		return messages;
 	}
+	
+	/**
+	 * Gets the number of messages that were added to the report, but
+	 * not kept in full. See {@link Builder#maxMessages(int)}.
+	 * @return returns the number of omitted messages
+	 */
+	public long getOmittedCount() {
+		long ret = 0;
+		if (omitted!=null) {
+			for (long c : omitted) {
+				ret += c;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets the number of messages of the specified type that were added
+	 * to the report, but not kept in full.
+	 * @param type the message type
+	 * @return returns the number of omitted messages of the specified type
+	 */
+	public long getOmittedCount(Type type) {
+		return omitted==null?0:omitted[type.ordinal()];
+	}
+	
+	/**
+	 * Gets the number of omitted messages, by type and message template.
+	 * @return returns a list of message counts
+	 */
+	public List<ValidatorMessageCount> getOmittedMessageCounts() {
+		return omittedMessages;
+	}
+	
+	/**
+	 * Gets the line numbers of the omitted messages that have a position, in
+	 * the order they were added. The array is parallel to
+	 * {@link #getOmittedColumnNumbers()}. A value of -1 indicates that
+	 * the line number is not available.
+	 * @return returns an array of line numbers
+	 */
+	public int[] getOmittedLineNumbers() {
+		return omittedLines.clone();
+	}
+	
+	/**
+	 * Gets the column numbers of the omitted messages that have a position, in
+	 * the order they were added. The array is parallel to
+	 * {@link #getOmittedLineNumbers()}. A value of -1 indicates that
+	 * the column number is not available.
+	 * @return returns an array of column numbers
+	 */
+	public int[] getOmittedColumnNumbers() {
+		return omittedColumns.clone();
+	}
 
 }
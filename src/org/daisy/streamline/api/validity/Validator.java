@@ -1,9 +1,12 @@
 package org.daisy.streamline.api.validity;
 
 import java.net.URL;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.daisy.streamline.api.media.InputStreamSupplier;
 import org.daisy.streamline.api.option.UserOption;
@@ -47,6 +50,97 @@ public interface Validator {
 	 * @return returns the validation report
 	 */
 	public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options);
+	
+	/**
+	 * <p>Validates the resource at the given URL and delivers the messages
+	 * to the listener as they are produced. If the listener returns false,
+	 * validation stops as soon as possible and no more messages are delivered.</p>
+	 * 
+	 * <p>The returned report contains the messages that were delivered to the
+	 * listener. If validation was stopped by the listener, the report is
+	 * marked as aborted (see {@link ValidationReport#isAborted()}).</p>
+	 * 
+	 * <p>The default implementation performs the entire validation and then
+	 * delivers the messages. Implementations should override this method
+	 * to deliver the messages while validating.</p>
+	 * 
+	 * @param input the resource URL
+	 * @param options the validation options
+	 * @param listener the listener
+	 * @return returns the validation report
+	 */
+	public default ValidationReport validate(URL input, Map<String, Object> options, ValidationListener listener) {
+		return ValidationReport.replay(validate(input, options), listener);
+	}
+	
+	/**
+	 * <p>Validates the given resource and delivers the messages to the
+	 * listener as they are produced. See {@link #validate(URL, Map, ValidationListener)}
+	 * for more information.</p>
+	 * 
+	 * @param input the resource
+	 * @param options the validation options
+	 * @param listener the listener
+	 * @return returns the validation report
+	 */
+	public default ValidationReport validate(InputStreamSupplier input, Map<String, Object> options, ValidationListener listener) {
+		return ValidationReport.replay(validate(input, options), listener);
+	}
+
+	/**
+	 * <p>Validates the resource at the given URL asynchronously, using the
+	 * specified executor. If the validation hasn't completed within the
+	 * specified time, the returned future completes exceptionally with a
+	 * {@link java.util.concurrent.TimeoutException}.</p>
+	 * 
+	 * <p>When the validation times out or the future is cancelled, the thread
+	 * running the validation is interrupted. Implementations should respond to
+	 * interruption by returning as soon as possible.</p>
+	 * 
+	 * <p>The input streams opened using the URL passed to
+	 * {@link #validate(URL, Map)}, or URLs resolved against it, are also closed.
+	 * Streams opened in other ways, for example by converting the URL to a file,
+	 * are not closed. The connections opened using the URL forward their settings
+	 * to the underlying connection, but they are not instances of protocol specific
+	 * types such as {@link java.net.HttpURLConnection}.</p>
+	 * 
+	 * @param input the resource URL
+	 * @param options the validation options
+	 * @param executor the executor to run the validation on
+	 * @param timeout the maximum time to wait for the validation
+	 * @return returns a future for the validation report
+	 */
+	public default CompletableFuture<ValidationReport> validateAsync(URL input, Map<String, Object> options, Executor executor, Duration timeout) {
+		return AsyncValidation.run(input, v->validate(v, options), executor, timeout);
+	}
+	
+	/**
+	 * <p>Validates the given resource asynchronously, using the specified executor.
+	 * See {@link #validateAsync(URL, Map, Executor, Duration)} for more information.</p>
+	 * 
+	 * <p>In addition to interrupting the thread, the input streams opened by
+	 * the validation are closed when the validation times out or the future is
+	 * cancelled.</p>
+	 * 
+	 * @param input the resource
+	 * @param options the validation options
+	 * @param executor the executor to run the validation on
+	 * @param timeout the maximum time to wait for the validation
+	 * @return returns a future for the validation report
+	 */
+	public default CompletableFuture<ValidationReport> validateAsync(InputStreamSupplier input, Map<String, Object> options, Executor executor, Duration timeout) {
+		return AsyncValidation.run(input, v->validate(v, options), executor, timeout);
+	}
+
+	/**
+	 * <p>Resets the state of this validator, so that it can be used
+	 * for another validation. This method is called between validations
+	 * by callers that reuse validators from a factory with a
+	 * {@link ValidatorFactory.Reuse#POOLED} policy.</p>
+	 * 
+	 * <p>The default implementation does nothing.</p>
+	 */
+	public default void reset() {}
 
 	/**
 	 * Gets a list of parameters applicable to this instance
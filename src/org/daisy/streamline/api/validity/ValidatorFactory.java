@@ -21,6 +21,26 @@ import org.daisy.streamline.api.media.FileDetails;
  * @author Joel Håkansson
  */
 public interface ValidatorFactory {
+	
+	/**
+	 * Defines how validators created by a factory may be reused.
+	 */
+	public enum Reuse {
+		/**
+		 * A new validator should be created for every validation.
+		 */
+		NONE,
+		/**
+		 * A single validator may be used by several threads at
+		 * the same time.
+		 */
+		SHARED,
+		/**
+		 * A validator may be used for several validations, one at a time,
+		 * provided that {@link Validator#reset()} is called between them.
+		 */
+		POOLED
+	}
 
 	/**
 	 * Lists supported format identifiers.
@@ -82,5 +102,22 @@ public interface ValidatorFactory {
 	 * putting it to use.</p>
 	 */
 	public default void setCreatedWithSPI() {}
+	
+	/**
+	 * <p>Gets the reuse policy of the validators created by
+	 * {@link #newValidator(String)} for the specified identifier.</p>
+	 * 
+	 * <p>Creating a validator can be expensive, for example if it
+	 * compiles a schema. By declaring that its validators can be reused,
+	 * a factory allows a caller to create a validator once and use it
+	 * for many validations.</p>
+	 * 
+	 * <p>The default implementation returns {@link Reuse#NONE}.</p>
+	 * @param identifier the format identifier
+	 * @return returns the reuse policy
+	 */
+	public default Reuse getReuse(String identifier) {
+		return Reuse.NONE;
+	}
 
 }
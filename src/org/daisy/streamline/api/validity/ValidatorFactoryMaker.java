@@ -1,19 +1,20 @@
 package org.daisy.streamline.api.validity;
 
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.daisy.streamline.api.media.DefaultFileDetails;
 import org.daisy.streamline.api.media.FileDetails;
+import org.daisy.streamline.api.registry.ServiceRegistry;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
@@ -26,16 +27,70 @@ import org.osgi.service.component.annotations.ReferencePolicy;
 @Component
 public class ValidatorFactoryMaker implements ValidatorFactoryMakerService {
 	private static final Logger logger = Logger.getLogger(ValidatorFactoryMaker.class.getCanonicalName());
-	private final List<ValidatorFactory> providers;
-	private final Map<String, ValidatorFactory> map;
+	private static final int MAX_CACHED_ENTRIES = 1000;
+	private static final int MAX_IDLE_VALIDATORS = 16;
+	// If more than one factory supports an identifier, the most recently added is used
+	private final ServiceRegistry<String, ValidatorFactory> identifiers;
+	private final ServiceRegistry<DetailsKey, ValidatorFactory> details;
+	// Reusable validators by factory and identifier
+	private final ConcurrentMap<ValidatorFactory, ConcurrentMap<String, Validator>> shared;
+	private final ConcurrentMap<ValidatorFactory, ConcurrentMap<String, ValidatorPool>> pools;
+
+	/**
+	 * Provides a key for the file details signature used when selecting a factory.
+	 * A copy of the details of the first lookup is kept, since factories are evaluated
+	 * with them. The copy doesn't refer to the caller's details, which may hold on
+	 * to the file contents.
+	 */
+	private static final class DetailsKey {
+		private final FileDetails details;
+		private final String formatName;
+		private final String mediaType;
+		private final String extension;
+
+		private DetailsKey(FileDetails details) {
+			this.formatName = details.getFormatName();
+			this.mediaType = details.getMediaType();
+			this.extension = details.getExtension();
+			DefaultFileDetails.Builder builder = new DefaultFileDetails.Builder()
+					.formatName(formatName)
+					.mediaType(mediaType)
+					.extension(extension);
+			if (details.getProperties()!=null) {
+				builder.properties(details.getProperties());
+			}
+			this.details = builder.build();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(formatName, mediaType, extension);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			DetailsKey other = (DetailsKey) obj;
+			return Objects.equals(formatName, other.formatName)
+					&& Objects.equals(mediaType, other.mediaType)
+					&& Objects.equals(extension, other.extension);
+		}
+	}
 	
 	/**
 	 * Creates a new empty instance. This method is public because it is required by OSGi.
 	 * In an SPI context, use newInstance()
 	 */
 	public ValidatorFactoryMaker() {
-		providers = new CopyOnWriteArrayList<>();
-		map = Collections.synchronizedMap(new HashMap<String, ValidatorFactory>());
+		identifiers = new ServiceRegistry<>(ValidatorFactoryMaker::findFactory, MAX_CACHED_ENTRIES, true);
+		details = new ServiceRegistry<>(ValidatorFactoryMaker::findFactory, MAX_CACHED_ENTRIES, true);
+		shared = new ConcurrentHashMap<>();
+		pools = new ConcurrentHashMap<>();
 	}
 
 	/**
@@ -64,40 +119,35 @@ public class ValidatorFactoryMaker implements ValidatorFactoryMakerService {
 	@SuppressWarnings("javadoc")
 	@Reference(cardinality=ReferenceCardinality.MULTIPLE, policy=ReferencePolicy.DYNAMIC)
 	public void addFactory(ValidatorFactory factory) {
-		synchronized (map) {
-			verifyMapIntegrity();
-			providers.add(factory);
-			for (String factoryId : factory.listIdentifiers()) {
-				map.put(factoryId, factory);
-			}
-		}
+		identifiers.add(factory);
+		details.add(factory);
 	}
 
 	// Unbind reference added automatically from addFactory annotation
 	@SuppressWarnings("javadoc")
 	public void removeFactory(ValidatorFactory factory) {
-		// this is to avoid adding items to the cache that were removed while
-		// iterating
-		synchronized (map) {
-			providers.remove(factory);
-			map.clear();
-		}
+		identifiers.remove(factory);
+		details.remove(factory);
+		shared.remove(factory);
+		Optional.ofNullable(pools.remove(factory)).ifPresent(v->v.values().forEach(ValidatorPool::close));
 	}
-	
-	private void verifyMapIntegrity() {
-		synchronized (map) {
-			if (map.isEmpty() && !providers.isEmpty()) { // cache has been cleared, restore
-				for (ValidatorFactory p : providers) {			
-					for (String factoryId : p.listIdentifiers()) {
-						map.put(factoryId, p);
-					}
-				}
+
+	private static Optional<ValidatorFactory> findFactory(String identifier, List<ValidatorFactory> providers) {
+		ValidatorFactory ret = null;
+		for (ValidatorFactory p : providers) {
+			if (p.listIdentifiers().contains(identifier)) {
+				ret = p;
 			}
 		}
+		return Optional.ofNullable(ret);
 	}
 
 	/**
-	 * Obtains a new instance of a Validator with the given identifier
+	 * <p>Obtains a Validator with the given identifier.</p>
+	 * <p>Depending on the reuse policy of the factory (see {@link ValidatorFactory#getReuse(String)}),
+	 * the returned validator is either a new instance, an instance shared with other callers, or
+	 * a validator that uses a pool of instances. In the latter two cases, the cost of creating
+	 * the validator is only paid once.</p>
 	 * @param identifier a string that identifies the desired implementation
 	 * @return returns a Validator for the given identifier, or null if none is found
 	 */
@@ -106,33 +156,64 @@ public class ValidatorFactoryMaker implements ValidatorFactoryMakerService {
 		if (identifier==null) {
 			return null;
 		}
-		ValidatorFactory template;
-		synchronized (map) {
-			verifyMapIntegrity();
-			template = map.get(identifier);
+		Optional<ValidatorFactory> template = identifiers.get(identifier);
+		if (!template.isPresent()) {
+			return null;
 		}
-		if (template!=null) {
-			try {
-				return template.newValidator(identifier);
-			} catch (ValidatorFactoryException e) {
-				logger.log(Level.WARNING, "Failed to create validator.", e);
-				return null;
+		ValidatorFactory factory = template.get();
+		try {
+			switch (factory.getReuse(identifier)) {
+				case SHARED:
+				{
+					ConcurrentMap<String, Validator> m = shared.computeIfAbsent(factory, k->new ConcurrentHashMap<>());
+					Validator ret = m.get(identifier);
+					if (ret==null) {
+						ret = factory.newValidator(identifier);
+						Validator prv = m.putIfAbsent(identifier, ret);
+						if (prv!=null) {
+							ret = prv;
+						}
+						// Don't keep instances of a factory that was removed in the meantime
+						if (!identifiers.contains(factory)) {
+							shared.remove(factory);
+						}
+					}
+					return ret;
+				}
+				case POOLED:
+				{
+					ConcurrentMap<String, ValidatorPool> m = pools.computeIfAbsent(factory, k->new ConcurrentHashMap<>());
+					ValidatorPool pool = m.computeIfAbsent(identifier, k->new ValidatorPool(factory, identifier, MAX_IDLE_VALIDATORS));
+					if (!identifiers.contains(factory)) {
+						Optional.ofNullable(pools.remove(factory)).ifPresent(v->v.values().forEach(ValidatorPool::close));
+					}
+					return pool.newValidator();
+				}
+				case NONE: default:
+					return factory.newValidator(identifier);
 			}
-		} else {
+		} catch (ValidatorFactoryException e) {
+			logger.log(Level.WARNING, "Failed to create validator.", e);
 			return null;
 		}
 	}
 
+	/**
+	 * <p>Returns a new validator for the specified file details, created by
+	 * the factory with the highest support for the details.</p>
+	 * <p>The selected factory is cached by the format name, media type
+	 * and extension of the details. Factories should therefore not base
+	 * their support on other properties of the details. When a factory is
+	 * added or removed, only the affected entries are updated.</p>
+	 * @param details the details for the file to validate
+	 * @return a validator
+	 */
 	@Override
 	public Optional<Validator> newValidator(FileDetails details) {
 		if (details==null) {
 			return Optional.empty();
 		}
-		return providers.stream()
-				.filter(v->v.supportsDetails(details).isPresent())
-				.sorted((a, b)->Double.compare(b.supportsDetails(details).get(), a.supportsDetails(details).get()))
-				.findFirst()
-				.map(v->{
+		return this.details.get(new DetailsKey(details)).map(v->{
 					try {
 						return v.newValidator(details);
 					} catch (ValidatorFactoryException e) {
@@ -141,14 +222,27 @@ public class ValidatorFactoryMaker implements ValidatorFactoryMakerService {
 					}
 				});
 	}
+	
+	private static Optional<ValidatorFactory> findFactory(DetailsKey key, List<ValidatorFactory> providers) {
+		ValidatorFactory best = null;
+		double bestValue = 0;
+		for (ValidatorFactory f : providers) {
+			Optional<Double> value = f.supportsDetails(key.details);
+			if (value.isPresent() && (best==null || value.get()>bestValue)) {
+				best = f;
+				bestValue = value.get();
+			}
+		}
+		return Optional.ofNullable(best);
+	}
 
 	@Override
 	public Collection<String> listIdentifiers() {
 		Set<String> ret = new HashSet<>();
-		for (ValidatorFactory p : providers) {
+		for (ValidatorFactory p : identifiers.getProviders()) {
 			ret.addAll(p.listIdentifiers());
 		}
 		return ret;
 	}
 
-}
\ No newline at end of file
+}
@@ -153,6 +153,22 @@ public final class ValidatorMessage {
 	public static Builder with(Type type) {
 		return new Builder(type);
 	}
+	
+	/**
+	 * Creates a new message builder with the same properties as the
+	 * supplied message.
+	 * @param template the message
+	 * @return returns a new builder
+	 */
+	public static Builder with(ValidatorMessage template) {
+		Builder ret = new Builder(template.type);
+		ret.exception = template.exception.orElse(null);
+		ret.message = template.message.orElse(null);
+		ret.lineNumber = template.lineNumber;
+		ret.columnNumber = template.columnNumber;
+		ret.uri = template.uri.orElse(null);
+		return ret;
+	}
 
 	private ValidatorMessage(Builder builder) {
 		this.type = builder.type;
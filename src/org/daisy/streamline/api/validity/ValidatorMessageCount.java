@@ -0,0 +1,56 @@
+package org.daisy.streamline.api.validity;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+
+/**
+ * Provides the number of validation messages of a given type and
+ * message template. A message template is the message description
+ * with variable parts, such as numbers and quoted strings, replaced
+ * by placeholders.
+ * @author Joel Håkansson
+ */
+public final class ValidatorMessageCount {
+	private final Type type;
+	private final Optional<String> template;
+	private final long count;
+
+	ValidatorMessageCount(Type type, String template, long count) {
+		this.type = Objects.requireNonNull(type);
+		this.template = Optional.ofNullable(template);
+		this.count = count;
+	}
+
+	/**
+	 * Gets the type of message.
+	 * @return returns the message type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the message template. If empty, the count includes messages
+	 * of the given type with any template.
+	 * @return returns the message template
+	 */
+	public Optional<String> getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Gets the number of messages.
+	 * @return returns the number of messages
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return type + ": " + template.orElse("[Other]") + " (" + count + ")";
+	}
+
+}
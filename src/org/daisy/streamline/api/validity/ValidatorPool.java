@@ -0,0 +1,114 @@
+package org.daisy.streamline.api.validity;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.daisy.streamline.api.media.InputStreamSupplier;
+import org.daisy.streamline.api.option.UserOption;
+
+/**
+ * Provides a pool of validators for a factory with a {@link ValidatorFactory.Reuse#POOLED}
+ * policy. The validators returned by {@link #newValidator()} borrow a validator from the pool
+ * for each call and return it, after resetting it, when the call completes.
+ * @author Joel Håkansson
+ */
+final class ValidatorPool {
+	private final ValidatorFactory factory;
+	private final String identifier;
+	private final int maxIdle;
+	private final Deque<Validator> idle;
+	private boolean closed;
+
+	ValidatorPool(ValidatorFactory factory, String identifier, int maxIdle) {
+		this.factory = factory;
+		this.identifier = identifier;
+		this.maxIdle = maxIdle;
+		this.idle = new ArrayDeque<>();
+		this.closed = false;
+	}
+
+	/**
+	 * Returns a validator that uses the validators in this pool.
+	 * @return a validator
+	 * @throws ValidatorFactoryException if a validator cannot be created
+	 */
+	Validator newValidator() throws ValidatorFactoryException {
+		// Make sure that validators can be created before handing out the proxy
+		release(borrow());
+		return new PooledValidator();
+	}
+
+	/**
+	 * Closes this pool. Idle validators are discarded and validators that
+	 * are returned to the pool after this call are not kept.
+	 */
+	void close() {
+		synchronized (idle) {
+			closed = true;
+			idle.clear();
+		}
+	}
+
+	private Validator borrow() throws ValidatorFactoryException {
+		Validator ret;
+		synchronized (idle) {
+			ret = idle.pollFirst();
+		}
+		return ret!=null?ret:factory.newValidator(identifier);
+	}
+
+	private void release(Validator v) {
+		v.reset();
+		synchronized (idle) {
+			if (!closed && idle.size()<maxIdle) {
+				idle.addFirst(v);
+			}
+		}
+	}
+
+	private <T> T run(Function<Validator, T> func) {
+		Validator v;
+		try {
+			v = borrow();
+		} catch (ValidatorFactoryException e) {
+			throw new IllegalStateException("Failed to create validator.", e);
+		}
+		// If func throws, the validator is not returned since its state is unknown
+		T ret = func.apply(v);
+		release(v);
+		return ret;
+	}
+
+	private final class PooledValidator implements Validator {
+
+		@Override
+		public ValidationReport validate(URL input, Map<String, Object> options) {
+			return run(v->v.validate(input, options));
+		}
+
+		@Override
+		public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options) {
+			return run(v->v.validate(input, options));
+		}
+
+		@Override
+		public ValidationReport validate(URL input, Map<String, Object> options, ValidationListener listener) {
+			return run(v->v.validate(input, options, listener));
+		}
+
+		@Override
+		public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options, ValidationListener listener) {
+			return run(v->v.validate(input, options, listener));
+		}
+
+		@Override
+		public List<UserOption> listOptions() {
+			return run(v->v.listOptions());
+		}
+	}
+
+}
@@ -0,0 +1,220 @@
+package org.daisy.streamline.api.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ConfigurationStoreTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("store").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> s = Files.walk(dir.toPath())) {
+			s.sorted(Comparator.reverseOrder()).forEach(v->v.toFile().delete());
+		}
+	}
+
+	private static Configuration newConfiguration(String key, Object value) {
+		Map<String, Object> map = new HashMap<>();
+		map.put("value", value);
+		map.put("none", null);
+		return new Configuration(new ConfigurationDetails.Builder(key).niceName("name").description("desc").build(), map);
+	}
+
+	@Test
+	public void testPutReadRemove() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir);
+		store.refresh();
+		assertTrue(store.keys().isEmpty());
+		String id = store.nextIdentifier();
+		store.put(newConfiguration(id, 1));
+		store.put(newConfiguration("other", Locale.ENGLISH));
+		assertTrue(store.contains(id));
+		assertEquals(1, store.read(id).getMap().get("value"));
+
+		ConfigurationStore store2 = new ConfigurationStore(dir);
+		store2.refresh();
+		assertEquals(2, store2.getDetails().size());
+		Configuration c = store2.read("other");
+		assertEquals("name", c.getDetails().getNiceName());
+		assertEquals("desc", c.getDetails().getDescription());
+		assertEquals(Locale.ENGLISH, c.getMap().get("value"));
+		assertTrue(c.getMap().containsKey("none"));
+		// The data is kept while memory permits
+		assertSame(c.getMap(), store2.read("other").getMap());
+
+		assertTrue(store2.remove(id));
+		assertFalse(store2.remove(id));
+		store.refresh();
+		assertFalse(store.contains(id));
+		assertNull(store.read(id));
+	}
+
+	@Test
+	public void testCatchUp() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir, 0);
+		ConfigurationStore store2 = new ConfigurationStore(dir, 0);
+		store.refresh();
+		store2.refresh();
+		store.put(newConfiguration("a", 1));
+		store.put(newConfiguration("b", 2));
+		store2.refresh();
+		assertEquals(2, store2.getSequence());
+		assertEquals(2, store2.read("b").getMap().get("value"));
+		store.put(newConfiguration("b", 3));
+		store.remove("a");
+		store2.refresh();
+		assertEquals(4, store2.getSequence());
+		assertFalse(store2.contains("a"));
+		assertEquals(3, store2.read("b").getMap().get("value"));
+		// Changes made by the other store are read before appending
+		store2.put(newConfiguration("c", 4));
+		store.refresh();
+		assertTrue(store.compactIfNeeded());
+		store2.refresh();
+		assertEquals(5, store2.getSequence());
+		assertEquals(2, store2.keys().size());
+		assertEquals(4, store2.read("c").getMap().get("value"));
+		store2.remove("b");
+		store.refresh();
+		assertEquals(6, store.getSequence());
+		assertFalse(store.contains("b"));
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir, 0);
+		store.refresh();
+		for (int i=0; i<10; i++) {
+			store.put(newConfiguration("key", i));
+		}
+		store.put(newConfiguration("removed", 0));
+		store.remove("removed");
+		File journal = new File(dir, ConfigurationStore.JOURNAL_FILE_NAME);
+		long size = journal.length();
+		assertTrue(store.compactIfNeeded());
+		assertTrue(journal.length()<size);
+		assertFalse(store.compactIfNeeded());
+		assertEquals(9, store.read("key").getMap().get("value"));
+
+		ConfigurationStore store2 = new ConfigurationStore(dir);
+		store2.refresh();
+		assertEquals(1, store2.keys().size());
+		assertEquals(9, store2.read("key").getMap().get("value"));
+		// Identifiers are not reused after compaction
+		assertEquals(store.nextIdentifier(), store2.nextIdentifier());
+	}
+
+	@Test
+	public void testIncompleteAppend() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir);
+		store.refresh();
+		store.put(newConfiguration("a", "v"));
+		File journal = new File(dir, ConfigurationStore.JOURNAL_FILE_NAME);
+		long size = journal.length();
+		store.put(newConfiguration("b", "v"));
+		// Simulate an append that was interrupted before the index was updated
+		try (FileChannel fc = FileChannel.open(new File(dir, ConfigurationStore.INDEX_FILE_NAME).toPath(), StandardOpenOption.WRITE)) {
+			fc.truncate(fc.size()-ConfigurationStore.INDEX_RECORD_SIZE);
+		}
+		ConfigurationStore store2 = new ConfigurationStore(dir);
+		store2.refresh();
+		assertTrue(store2.contains("a"));
+		assertFalse(store2.contains("b"));
+		store2.put(newConfiguration("c", "v"));
+		assertTrue(journal.length()>size);
+		ConfigurationStore store3 = new ConfigurationStore(dir);
+		store3.refresh();
+		assertEquals("v", store3.read("c").getMap().get("value"));
+	}
+
+	@Test
+	public void testMissingIndex() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir);
+		store.refresh();
+		store.put(newConfiguration("a", "v"));
+		store.put(newConfiguration("b", "v"));
+		store.remove("a");
+		assertTrue(new File(dir, ConfigurationStore.INDEX_FILE_NAME).delete());
+		ConfigurationStore store2 = new ConfigurationStore(dir);
+		store2.refresh();
+		assertFalse(store2.contains("a"));
+		assertEquals("v", store2.read("b").getMap().get("value"));
+	}
+
+	@Test
+	public void testIndexIsOnlyWrittenByWriters() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir, 0);
+		store.refresh();
+		store.put(newConfiguration("a", "v"));
+		store.put(newConfiguration("a", "w"));
+		store.put(newConfiguration("b", "v"));
+		Path index = new File(dir, ConfigurationStore.INDEX_FILE_NAME).toPath();
+		Path old = new File(dir, "old.idx").toPath();
+		Files.copy(index, old);
+		store.compact();
+		// Simulate a compaction that has replaced the journal, but not yet the index
+		Files.copy(old, index, StandardCopyOption.REPLACE_EXISTING);
+		byte[] stale = Files.readAllBytes(index);
+		ConfigurationStore store2 = new ConfigurationStore(dir);
+		store2.refresh();
+		assertEquals("w", store2.read("a").getMap().get("value"));
+		assertTrue(Arrays.equals(stale, Files.readAllBytes(index)));
+		store2.put(newConfiguration("c", "v"));
+		ConfigurationStore store3 = new ConfigurationStore(dir);
+		store3.refresh();
+		assertEquals(3, store3.keys().size());
+		assertEquals("v", store3.read("c").getMap().get("value"));
+	}
+
+	@Test
+	public void testFailedLoadKeepsSnapshot() throws IOException {
+		ConfigurationStore store = new ConfigurationStore(dir);
+		store.refresh();
+		store.put(newConfiguration("a", "v"));
+		ConfigurationStore store2 = new ConfigurationStore(dir);
+		store2.refresh();
+		// Change the generation and make the index point at the wrong record
+		try (FileChannel jc = FileChannel.open(new File(dir, ConfigurationStore.JOURNAL_FILE_NAME).toPath(), StandardOpenOption.WRITE);
+			FileChannel ic = FileChannel.open(new File(dir, ConfigurationStore.INDEX_FILE_NAME).toPath(), StandardOpenOption.WRITE)) {
+			jc.write((ByteBuffer)ByteBuffer.allocate(8).putLong(2).flip(), 4);
+			ic.write((ByteBuffer)ByteBuffer.allocate(16).putLong(2).putLong(99).flip(), 4);
+		}
+		try {
+			store2.refresh();
+			throw new AssertionError();
+		} catch (IOException e) {
+			// Expected
+		}
+		assertTrue(store2.contains("a"));
+		assertEquals(1, store2.getDetails().size());
+	}
+
+}
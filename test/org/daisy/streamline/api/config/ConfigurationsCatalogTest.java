@@ -0,0 +1,127 @@
+package org.daisy.streamline.api.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ConfigurationsCatalogTest {
+
+	private static class TestProvider implements ConfigurationsProvider {
+		private final List<Runnable> listeners = new ArrayList<>();
+		private final Set<ConfigurationDetails> details = new HashSet<>();
+		private final String name;
+		private Duration ttl = Duration.ZERO;
+		private int calls = 0;
+
+		private TestProvider(String name, String ... keys) {
+			this.name = name;
+			for (String key : keys) {
+				details.add(new ConfigurationDetails.Builder(key).build());
+			}
+		}
+
+		private void add(String key) {
+			details.add(new ConfigurationDetails.Builder(key).build());
+			listeners.forEach(Runnable::run);
+		}
+
+		@Override
+		public Set<ConfigurationDetails> getConfigurationDetails() {
+			return details;
+		}
+
+		@Override
+		public Map<String, Object> getConfiguration(String key) throws ConfigurationsProviderException {
+			calls++;
+			return Collections.singletonMap("provider", name);
+		}
+
+		@Override
+		public Duration getCacheTimeToLive() {
+			return ttl;
+		}
+
+		@Override
+		public void addChangeListener(Runnable listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeChangeListener(Runnable listener) {
+			listeners.remove(listener);
+		}
+	}
+
+	@Test
+	public void testLookup() throws ConfigurationsProviderException {
+		ConfigurationsCatalog catalog = new ConfigurationsCatalog();
+		TestProvider p1 = new TestProvider("p1", "a", "b");
+		TestProvider p2 = new TestProvider("p2", "b");
+		catalog.addFactory(p1);
+		catalog.addFactory(p2);
+		assertEquals(2, catalog.getConfigurationDetails().size());
+		assertEquals("p1", catalog.getConfiguration("a").get("provider"));
+		// The most recently added provider is used
+		assertEquals("p2", catalog.getConfiguration("b").get("provider"));
+		catalog.removeFactory(p2);
+		assertEquals("p1", catalog.getConfiguration("b").get("provider"));
+		assertTrue(p2.listeners.isEmpty());
+	}
+
+	@Test
+	public void testChange() throws ConfigurationsProviderException {
+		ConfigurationsCatalog catalog = new ConfigurationsCatalog();
+		TestProvider p1 = new TestProvider("p1", "a");
+		catalog.addFactory(p1);
+		try {
+			catalog.getConfiguration("c");
+			throw new AssertionError();
+		} catch (ConfigurationsProviderException e) {
+			// Expected
+		}
+		p1.add("c");
+		assertEquals("p1", catalog.getConfiguration("c").get("provider"));
+		assertEquals(2, catalog.getConfigurationDetails().size());
+	}
+
+	@Test
+	public void testCache() throws ConfigurationsProviderException {
+		ConfigurationsCatalog catalog = new ConfigurationsCatalog();
+		TestProvider p1 = new TestProvider("p1", "a");
+		TestProvider p2 = new TestProvider("p2", "b");
+		p1.ttl = Duration.ofHours(1);
+		catalog.addFactory(p1);
+		catalog.addFactory(p2);
+		Map<String, Object> a = catalog.getConfiguration("a");
+		assertSame(a, catalog.getConfiguration("a"));
+		assertEquals(1, p1.calls);
+		// Not cached
+		Map<String, Object> b = catalog.getConfiguration("b");
+		assertNotSame(b, catalog.getConfiguration("b"));
+		assertEquals(b, catalog.getConfiguration("b"));
+		assertEquals(b.hashCode(), catalog.getConfiguration("b").hashCode());
+		assertEquals(4, p2.calls);
+		p1.add("c");
+		assertNotSame(a, catalog.getConfiguration("a"));
+		assertEquals(2, p1.calls);
+		try {
+			a.put("key", "value");
+			throw new AssertionError();
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+}
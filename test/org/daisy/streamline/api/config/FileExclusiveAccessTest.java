@@ -0,0 +1,120 @@
+package org.daisy.streamline.api.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class FileExclusiveAccessTest {
+	private File lockFile;
+
+	@Before
+	public void setUp() throws IOException {
+		lockFile = File.createTempFile("test", ".lock");
+	}
+
+	@After
+	public void tearDown() {
+		lockFile.delete();
+	}
+
+	private static CompletableFuture<Boolean> acquireInOtherThread(FileExclusiveAccess ea, boolean shared, Duration timeout, CountDownLatch release) {
+		return CompletableFuture.supplyAsync(()->{
+			try {
+				boolean ret = shared?ea.acquireShared(timeout):ea.acquire(timeout);
+				if (ret) {
+					release.await();
+					ea.release();
+				}
+				return ret;
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@Test
+	public void testExclusive() throws InterruptedException, ExecutionException, TimeoutException {
+		FileExclusiveAccess ea = new FileExclusiveAccess(lockFile);
+		FileExclusiveAccess ea2 = new FileExclusiveAccess(lockFile);
+		CountDownLatch done = new CountDownLatch(0);
+		assertTrue(ea.acquire());
+		// Reentrant
+		assertTrue(ea.acquire());
+		ea.release();
+		assertFalse(acquireInOtherThread(ea2, false, Duration.ofMillis(50), done).get(5, TimeUnit.SECONDS));
+		assertFalse(acquireInOtherThread(ea2, true, Duration.ZERO, done).get(5, TimeUnit.SECONDS));
+		CompletableFuture<Boolean> waiting = acquireInOtherThread(ea2, false, Duration.ofSeconds(5), done);
+		Thread.sleep(50);
+		assertFalse(waiting.isDone());
+		ea.release();
+		assertTrue(waiting.get(5, TimeUnit.SECONDS));
+		assertTrue(ea.acquire());
+		ea.release();
+	}
+
+	@Test
+	public void testShared() throws InterruptedException, ExecutionException, TimeoutException {
+		FileExclusiveAccess ea = new FileExclusiveAccess(lockFile);
+		CountDownLatch release = new CountDownLatch(1);
+		assertTrue(ea.acquireShared(Duration.ZERO));
+		CompletableFuture<Boolean> reader = acquireInOtherThread(ea, true, Duration.ofSeconds(5), release);
+		CompletableFuture<Boolean> writer = acquireInOtherThread(ea, false, Duration.ofMillis(50), release);
+		assertFalse(writer.get(5, TimeUnit.SECONDS));
+		ea.release();
+		release.countDown();
+		assertTrue(reader.get(5, TimeUnit.SECONDS));
+		assertTrue(acquireInOtherThread(ea, false, Duration.ofSeconds(5), release).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUnusedLocksAreDiscarded() throws InterruptedException, ExecutionException, TimeoutException {
+		FileExclusiveAccess ea = new FileExclusiveAccess(lockFile);
+		assertFalse(FileExclusiveAccess.isInUse(lockFile));
+		assertTrue(ea.acquire());
+		assertTrue(ea.acquireShared(Duration.ZERO));
+		ea.release();
+		assertTrue(FileExclusiveAccess.isInUse(lockFile));
+		assertFalse(acquireInOtherThread(new FileExclusiveAccess(lockFile), false, Duration.ZERO, new CountDownLatch(0)).get(5, TimeUnit.SECONDS));
+		ea.release();
+		assertFalse(FileExclusiveAccess.isInUse(lockFile));
+	}
+
+	@Test
+	public void testDefaultAcquire() throws InterruptedException {
+		AtomicInteger attempts = new AtomicInteger();
+		ExclusiveAccess ea = new ExclusiveAccess() {
+			@Override
+			public boolean acquire() {
+				return attempts.incrementAndGet()==3;
+			}
+			@Override
+			public void release() {
+			}
+		};
+		assertTrue(ea.acquire(Duration.ofSeconds(5)));
+		assertEquals(3, attempts.get());
+		attempts.set(10);
+		assertFalse(ea.acquire(Duration.ofMillis(100)));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testReleaseWithoutAccess() {
+		new FileExclusiveAccess(lockFile).release();
+	}
+
+}
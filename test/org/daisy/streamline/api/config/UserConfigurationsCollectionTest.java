@@ -1,12 +1,22 @@
 package org.daisy.streamline.api.config;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -14,12 +24,13 @@ import org.mockito.Mockito;
 public class UserConfigurationsCollectionTest {
 
 	@Test
-	public void test() throws IOException {
+	public void test() throws IOException, InterruptedException {
 		File catalog = new File(new File("build"), this.getClass().getName());
 		// delete the catalog file, to make sure it is empty to begin with
 		catalog.delete();
 		ExclusiveAccess ea = Mockito.mock(ExclusiveAccess.class);
 		Mockito.when(ea.acquire()).thenReturn(true);
+		Mockito.when(ea.acquire(Mockito.any(Duration.class))).thenReturn(true);
 		UserConfigurationsCollection c = new UserConfigurationsCollection(catalog, ea);
 		assertTrue(c.getConfigurationDetails().isEmpty());
 		Map<String, Object> t = new HashMap<>();
@@ -31,4 +42,193 @@ public class UserConfigurationsCollectionTest {
 		c.removeConfiguration(id);
 		assertTrue(c.getConfigurationDetails().isEmpty());
 	}
+
+	@Test
+	public void testReadWhileModifying() throws Exception {
+		File dir = Files.createTempDirectory("collection").toFile();
+		try {
+			ExclusiveAccess ea = Mockito.mock(ExclusiveAccess.class);
+			Mockito.when(ea.acquire()).thenReturn(true);
+			Mockito.when(ea.acquire(Mockito.any(Duration.class))).thenReturn(true);
+			UserConfigurationsCollection c = new UserConfigurationsCollection(dir, ea);
+			Map<String, Object> t = new HashMap<>();
+			t.put("k1", "v1");
+			String id = c.addConfiguration("name", "desc", t).orElseThrow(RuntimeException::new);
+			// Readers don't wait for the instance lock used by writers
+			synchronized (c) {
+				assertEquals(t, CompletableFuture.supplyAsync(()->c.getConfiguration(id)).get(5, TimeUnit.SECONDS));
+				assertEquals(1, CompletableFuture.supplyAsync(()->c.getConfigurationDetails()).get(5, TimeUnit.SECONDS).size());
+			}
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testWatch() throws Exception {
+		File dir = Files.createTempDirectory("collection").toFile();
+		try {
+			ExclusiveAccess ea = Mockito.mock(ExclusiveAccess.class);
+			Mockito.when(ea.acquire()).thenReturn(true);
+			Mockito.when(ea.acquire(Mockito.any(Duration.class))).thenReturn(true);
+			UserConfigurationsCollection c = new UserConfigurationsCollection(dir, ea);
+			UserConfigurationsCollection c2 = new UserConfigurationsCollection(dir, ea);
+			c.startWatching(Duration.ofMillis(10));
+			try {
+				String id = c2.addConfiguration("name", "desc", new HashMap<>()).orElseThrow(RuntimeException::new);
+				long deadline = System.currentTimeMillis() + 10000;
+				while (!c.containsConfiguration(id) && System.currentTimeMillis()<deadline) {
+					Thread.sleep(10);
+				}
+				assertTrue(c.containsConfiguration(id));
+			} finally {
+				c.stopWatching();
+			}
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testUpdate() throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("collection").toFile();
+		try {
+			ExclusiveAccess ea = Mockito.mock(ExclusiveAccess.class);
+			Mockito.when(ea.acquire()).thenReturn(true);
+			Mockito.when(ea.acquire(Mockito.any(Duration.class))).thenReturn(true);
+			UserConfigurationsCollection c = new UserConfigurationsCollection(dir, ea);
+			UserConfigurationsCollection c2 = new UserConfigurationsCollection(dir, ea);
+			Map<String, Object> t = new HashMap<>();
+			t.put("count", 0);
+			String id = c.addConfiguration("name", "desc", t).orElseThrow(RuntimeException::new);
+			String id2 = c.addConfiguration("name", "desc", t).orElseThrow(RuntimeException::new);
+			int[] calls = new int[1];
+			assertTrue(c.updateConfiguration(id, v->{
+				calls[0]++;
+				if (calls[0]==1) {
+					// Modify the same configuration, and another one, in the meantime
+					assertTrue(c2.updateConfiguration(id, v2->increment(v2)));
+					assertTrue(c2.updateConfiguration(id2, v2->increment(v2)));
+				}
+				return increment(v);
+			}));
+			assertEquals(2, calls[0]);
+			assertEquals(2, c.getConfiguration(id).get("count"));
+			assertEquals(1, c.getConfiguration(id2).get("count"));
+			assertEquals("name", c.getConfigurationDetails().iterator().next().getNiceName());
+			// Only conflicting updates are retried
+			calls[0] = 0;
+			assertTrue(c.updateConfiguration(id, v->{
+				calls[0]++;
+				if (calls[0]==1) {
+					assertTrue(c2.updateConfiguration(id2, v2->increment(v2)));
+				}
+				return increment(v);
+			}));
+			assertEquals(1, calls[0]);
+			assertFalse(c.updateConfiguration("unknown", v->v));
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static Map<String, Object> increment(Map<String, Object> v) {
+		Map<String, Object> ret = new HashMap<>(v);
+		ret.put("count", (Integer)v.get("count")+1);
+		return ret;
+	}
+
+	@Test
+	public void testImportCatalog() throws Exception {
+		File dir = Files.createTempDirectory("collection").toFile();
+		try {
+			Map<String, Object> t = new HashMap<>();
+			t.put("k1", "v1");
+			Inventory inventory = new Inventory();
+			String id = inventory.nextIdentifier();
+			File f = new File(dir, "config-1.ser");
+			inventory.add(InventoryEntry.create(new Configuration(new ConfigurationDetails.Builder(id).build(), t), f));
+			inventory.write("catalog-", new File(dir, "catalog.ser"));
+			ExclusiveAccess ea = Mockito.mock(ExclusiveAccess.class);
+			Mockito.when(ea.acquire()).thenReturn(true);
+			Mockito.when(ea.acquire(Mockito.any(Duration.class))).thenReturn(true);
+			UserConfigurationsCollection c = new UserConfigurationsCollection(dir, ea);
+			assertTrue(c.containsConfiguration(id));
+			assertEquals(t, c.getConfiguration(id));
+			assertFalse(new File(dir, "catalog.ser").exists());
+			assertFalse(f.exists());
+			String id2 = c.addConfiguration("name", "desc", t).orElseThrow(RuntimeException::new);
+			assertFalse(id.equals(id2));
+			// Configurations stored earlier are available immediately, files are imported in the background
+			Configuration config = new Configuration(new ConfigurationDetails.Builder("imported").build(), t);
+			config.write(new File(dir, "import.ser"));
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				CountDownLatch latch = new CountDownLatch(1);
+				executor.execute(()->{
+					try {
+						latch.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+				UserConfigurationsCollection c2 = new UserConfigurationsCollection(dir, ea, executor);
+				assertEquals(2, c2.getConfigurationDetails().size());
+				assertFalse(c2.getStartup().isDone());
+				latch.countDown();
+				c2.getStartup().get(5, TimeUnit.SECONDS);
+				assertEquals(3, c2.getConfigurationDetails().size());
+			} finally {
+				executor.shutdown();
+			}
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testModifyBeforeImport() throws Exception {
+		File dir = Files.createTempDirectory("collection").toFile();
+		try {
+			Map<String, Object> t = new HashMap<>();
+			t.put("k1", "v1");
+			Inventory inventory = new Inventory();
+			String id = inventory.nextIdentifier();
+			inventory.add(InventoryEntry.create(new Configuration(new ConfigurationDetails.Builder(id).build(), t), new File(dir, "config-1.ser")));
+			inventory.write("catalog-", new File(dir, "catalog.ser"));
+			ExclusiveAccess ea = Mockito.mock(ExclusiveAccess.class);
+			Mockito.when(ea.acquire()).thenReturn(true);
+			Mockito.when(ea.acquire(Mockito.any(Duration.class))).thenReturn(true);
+			List<Runnable> deferred = new ArrayList<>();
+			UserConfigurationsCollection c = new UserConfigurationsCollection(dir, ea, deferred::add);
+			assertFalse(c.getStartup().isDone());
+			Map<String, Object> t2 = new HashMap<>();
+			t2.put("k2", "v2");
+			String id2 = c.addConfiguration("name", "desc", t2).orElseThrow(RuntimeException::new);
+			// The catalog is imported before the configuration is added
+			assertFalse(id.equals(id2));
+			assertEquals(t, c.getConfiguration(id));
+			deferred.forEach(Runnable::run);
+			assertTrue(c.getStartup().isDone());
+			assertEquals(2, c.getConfigurationDetails().size());
+			assertEquals(t2, c.getConfiguration(id2));
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
 }
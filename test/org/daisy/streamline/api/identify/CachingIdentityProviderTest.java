@@ -0,0 +1,103 @@
+package org.daisy.streamline.api.identify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.daisy.streamline.api.identity.CachingIdentityProvider;
+import org.daisy.streamline.api.identity.IdentificationFailedException;
+import org.daisy.streamline.api.identity.Identifier;
+import org.daisy.streamline.api.identity.IdentityProvider;
+import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.AnnotatedInputStream;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+import org.daisy.streamline.api.media.InputStreamSupplier;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CachingIdentityProviderTest {
+
+	private static class CountingFactory extends TestFactory {
+		private int count = 0;
+		@Override
+		public Identifier newIdentifier() {
+			count++;
+			return super.newIdentifier();
+		}
+	}
+
+	@Test
+	public void testCache() {
+		IdentityProvider ip = new IdentityProvider();
+		CountingFactory factory = new CountingFactory();
+		ip.addFactory(factory);
+		CachingIdentityProvider id = CachingIdentityProvider.with(ip).build();
+		File f = new File("test/resource-files/unknown.unk");
+		assertEquals("application/test", id.identify(f).getMediaType());
+		assertEquals("application/test", id.identify(f).getMediaType());
+		assertEquals(1, factory.count);
+	}
+
+	@Test
+	public void testStorage() throws IOException {
+		Path storage = Files.createTempFile("test", ".tmp");
+		storage.toFile().deleteOnExit();
+		Files.delete(storage);
+		File f = new File("test/resource-files/unknown.unk");
+		IdentityProvider ip = new IdentityProvider();
+		CountingFactory factory = new CountingFactory();
+		ip.addFactory(factory);
+		try (CachingIdentityProvider id = CachingIdentityProvider.with(ip).storage(storage).contentHash(true).build()) {
+			id.identify(f);
+		}
+		try (CachingIdentityProvider id = CachingIdentityProvider.with(ip).storage(storage).contentHash(true).build()) {
+			assertEquals(1, id.size());
+			AnnotatedFile af = id.identify(f);
+			assertEquals("application/test", af.getMediaType());
+			assertEquals("unk", af.getExtension());
+			assertEquals(f.toPath(), af.getPath());
+		}
+		assertEquals(1, factory.count);
+	}
+
+	@Test
+	public void testStorageLongStrings() throws IOException {
+		Path storage = Files.createTempFile("test", ".tmp");
+		storage.toFile().deleteOnExit();
+		Files.delete(storage);
+		File f = new File("test/resource-files/unknown.unk");
+		char[] c = new char[70000];
+		Arrays.fill(c, '\u00e5');
+		String value = new String(c);
+		IdentityProvider ip = new IdentityProvider();
+		ip.addFactory(new TestFactory() {
+			@Override
+			public Identifier newIdentifier() {
+				return new Identifier() {
+					@Override
+					public AnnotatedFile identify(AnnotatedFile f) throws IdentificationFailedException {
+						return DefaultAnnotatedFile.with(f).mediaType("application/test").property("long", value).build();
+					}
+					@Override
+					public AnnotatedInputStream identify(InputStreamSupplier f) throws IdentificationFailedException {
+						return null;
+					}
+				};
+			}
+		});
+		try (CachingIdentityProvider id = CachingIdentityProvider.with(ip).storage(storage).build()) {
+			id.identify(f);
+		}
+		try (CachingIdentityProvider id = CachingIdentityProvider.with(new IdentityProvider()).storage(storage).build()) {
+			assertEquals(1, id.size());
+			AnnotatedFile af = id.identify(f);
+			assertEquals("application/test", af.getMediaType());
+			assertEquals(value, af.getProperties().get("long"));
+		}
+	}
+
+}
@@ -1,12 +1,42 @@
 package org.daisy.streamline.api.identify;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.daisy.streamline.api.identity.BulkIdentification;
+import org.daisy.streamline.api.identity.IdentificationFailedException;
+import org.daisy.streamline.api.identity.Identifier;
 import org.daisy.streamline.api.identity.IdentityProvider;
 import org.daisy.streamline.api.identity.IdentityProviderService;
 import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.AnnotatedInputStream;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+import org.daisy.streamline.api.media.DefaultAnnotatedInputStream;
+import org.daisy.streamline.api.media.DefaultFileDetails;
+import org.daisy.streamline.api.media.FileDetails;
+import org.daisy.streamline.api.media.InputStreamSupplier;
 import org.junit.Ignore;
 import org.junit.Test;
 @SuppressWarnings("javadoc")
@@ -41,5 +71,221 @@ public class IdentityProviderTest {
 		AnnotatedFile f = id.identify(new File("test/resource-files/unknown.unk"));
 		assertEquals("application/test", f.getMediaType());
 	}
+	
+	@Test
+	public void testDeclaredExtension_01() {
+		IdentityProvider id = new IdentityProvider();
+		id.addFactory(new TestFactory() {
+			@Override
+			public Collection<String> listFileExtensions() {
+				return Arrays.asList("xyz");
+			}
+			@Override
+			public boolean accepts(FileDetails type) {
+				fail("Factory should not be consulted for this extension.");
+				return false;
+			}
+		});
+		id.addFactory(new TestFactory());
+		AnnotatedFile f = id.identify(new File("test/resource-files/unknown.unk"));
+		assertEquals("application/test", f.getMediaType());
+	}
+	
+	@Test
+	public void testDeclaredExtension_02() {
+		IdentityProvider id = new IdentityProvider();
+		id.addFactory(new TestFactory() {
+			@Override
+			public Collection<String> listFileExtensions() {
+				return Arrays.asList("UNK");
+			}
+		});
+		AnnotatedFile f = id.identify(new File("test/resource-files/unknown.unk"));
+		assertEquals("application/test", f.getMediaType());
+	}
+	
+	@Test
+	public void testBulk() throws IOException {
+		IdentityProvider id = new IdentityProvider();
+		id.addFactory(new TestFactory());
+		try (Stream<AnnotatedFile> s = BulkIdentification.with(id).parallelism(2).build().identify(Paths.get("test/resource-files"))) {
+			Map<String, AnnotatedFile> res = s.collect(Collectors.toMap(v->v.getPath().getFileName().toString(), Function.identity()));
+			assertEquals(3, res.size());
+			assertEquals("application/test", res.get("unknown.unk").getMediaType());
+		}
+	}
+	
+	@Test
+	public void testBulkFailure() throws IOException {
+		IdentityProvider ip = new IdentityProvider();
+		ip.addFactory(new TestFactory());
+		IdentityProviderService id = new IdentityProviderService() {
+			@Override
+			public AnnotatedFile identify(File in) {
+				if (in.getName().endsWith(".unk")) {
+					throw new IllegalStateException();
+				}
+				return ip.identify(in);
+			}
+			@Override
+			public AnnotatedInputStream identify(InputStreamSupplier in) {
+				return ip.identify(in);
+			}
+		};
+		try (Stream<AnnotatedFile> s = BulkIdentification.with(id).parallelism(2).build().identify(Paths.get("test/resource-files"))) {
+			Map<String, AnnotatedFile> res = s.collect(Collectors.toMap(v->v.getPath().getFileName().toString(), Function.identity()));
+			assertEquals(3, res.size());
+			// reported without identification
+			assertFalse("application/test".equals(res.get("unknown.unk").getMediaType()));
+		}
+	}
+
+	@Test
+	public void testBulkClose() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		IdentityProvider ip = new IdentityProvider();
+		ip.addFactory(new TestFactory() {
+			@Override
+			public boolean accepts(FileDetails type) {
+				started.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return false;
+			}
+		});
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			Stream<AnnotatedFile> s = BulkIdentification.with(ip).parallelism(1).executor(exec).build()
+					.identify(Stream.of(Paths.get("test/resource-files/unknown.unk")));
+			CompletableFuture.runAsync(()->s.findFirst());
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			s.close();
+			// The identification is cancelled, even though the executor is still running
+			assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+			assertFalse(exec.isShutdown());
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	private static class ConfidenceFactory extends TestFactory {
+		private final double confidence;
+		private ConfidenceFactory(double confidence) {
+			this.confidence = confidence;
+		}
+		@Override
+		public Optional<Double> getConfidence(FileDetails type) {
+			return Optional.of(confidence);
+		}
+	}
+	
+	@Test
+	public void testIdentifyStream() throws IOException {
+		IdentityProvider id = new IdentityProvider();
+		id.addFactory(new TestFactory() {
+			@Override
+			public Identifier newIdentifier() {
+				return new Identifier() {
+					@Override
+					public AnnotatedFile identify(AnnotatedFile f) throws IdentificationFailedException {
+						throw new IdentificationFailedException();
+					}
+					@Override
+					public AnnotatedInputStream identify(InputStreamSupplier f) throws IdentificationFailedException {
+						try {
+							f.newInputStream().close();
+						} catch (IOException e) {
+							throw new IdentificationFailedException(e);
+						}
+						return new DefaultAnnotatedInputStream.Builder(f)
+								.details(new DefaultFileDetails.Builder().extension("unk").mediaType("application/test").build())
+								.build();
+					}
+				};
+			}
+		});
+		AtomicInteger opened = new AtomicInteger();
+		InputStreamSupplier in = new InputStreamSupplier() {
+			@Override
+			public InputStream newInputStream() throws IOException {
+				opened.incrementAndGet();
+				return new ByteArrayInputStream(new byte[10]);
+			}
+			@Override
+			public String getSystemId() {
+				return "test.unk";
+			}
+		};
+		AnnotatedInputStream s = id.identify(in);
+		assertEquals("application/test", s.getMediaType());
+		assertEquals("unk", s.getExtension());
+		// The result reads from the original source rather than the identification buffer
+		int count = opened.get();
+		s.newInputStream().close();
+		assertEquals(count+1, opened.get());
+	}
+
+	@Test
+	public void testConfidence_01() {
+		IdentityProvider id = new IdentityProvider();
+		id.addFactory(new ConfidenceFactory(0.9));
+		// A more specific format, identified with a lower confidence
+		id.addFactory(new ConfidenceFactory(0.5) {
+			@Override
+			public boolean accepts(FileDetails type) {
+				return "application/test".equals(type.getMediaType());
+			}
+			@Override
+			public Identifier newIdentifier() {
+				return new Identifier() {
+					@Override
+					public AnnotatedFile identify(AnnotatedFile f) throws IdentificationFailedException {
+						return DefaultAnnotatedFile.with(f).mediaType("application/test+refined").build();
+					}
+					@Override
+					public AnnotatedInputStream identify(InputStreamSupplier f) throws IdentificationFailedException {
+						return null;
+					}
+				};
+			}
+		});
+		AnnotatedFile f = id.identify(new File("test/resource-files/unknown.unk"));
+		assertEquals("application/test+refined", f.getMediaType());
+		assertEquals(0.5, f.getProperties().get(IdentityProvider.CONFIDENCE_PROPERTY));
+	}
+	
+	@Test
+	public void testConfidence_02() {
+		IdentityProvider id = new IdentityProvider(0.8);
+		id.addFactory(new ConfidenceFactory(0.9));
+		id.addFactory(new TestFactory() {
+			@Override
+			public boolean accepts(FileDetails type) {
+				fail("Identification should have stopped at the confidence threshold.");
+				return false;
+			}
+		});
+		AnnotatedFile f = id.identify(new File("test/resource-files/unknown.unk"));
+		assertEquals("application/test", f.getMediaType());
+	}
+
+	@Test
+	public void testConfidence_03() {
+		IdentityProvider id = new IdentityProvider();
+		id.activate(Collections.singletonMap(IdentityProvider.CONFIDENCE_THRESHOLD_PROPERTY, "0.8"));
+		id.addFactory(new ConfidenceFactory(0.9));
+		id.addFactory(new TestFactory() {
+			@Override
+			public boolean accepts(FileDetails type) {
+				fail("Identification should have stopped at the confidence threshold.");
+				return false;
+			}
+		});
+		id.identify(new File("test/resource-files/unknown.unk"));
+	}
 
 }
@@ -0,0 +1,86 @@
+package org.daisy.streamline.api.media;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ReplayableInputStreamSupplierTest {
+
+	private static class CountingSupplier implements InputStreamSupplier {
+		private final byte[] data;
+		private int count = 0;
+
+		private CountingSupplier(int size) {
+			this.data = new byte[size];
+			for (int i=0; i<size; i++) {
+				data[i] = (byte)i;
+			}
+		}
+
+		@Override
+		public InputStream newInputStream() throws IOException {
+			count++;
+			return new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public String getSystemId() {
+			return "test";
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		try (InputStream in = is) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] b = new byte[7];
+			int len;
+			while ((len = in.read(b))>-1) {
+				os.write(b, 0, len);
+			}
+			return os.toByteArray();
+		}
+	}
+
+	@Test
+	public void testHeaderOnly() throws IOException {
+		CountingSupplier s = new CountingSupplier(100);
+		ReplayableInputStreamSupplier r = ReplayableInputStreamSupplier.create(s, 10);
+		for (int i=0; i<5; i++) {
+			try (InputStream is = r.newInputStream()) {
+				assertEquals(0, is.read());
+				assertEquals(1, is.read());
+			}
+		}
+		assertEquals(1, s.count);
+	}
+
+	@Test
+	public void testSmallSource() throws IOException {
+		CountingSupplier s = new CountingSupplier(5);
+		ReplayableInputStreamSupplier r = ReplayableInputStreamSupplier.create(s, 10);
+		assertArrayEquals(s.data, readAll(r.newInputStream()));
+		assertArrayEquals(s.data, readAll(r.newInputStream()));
+		assertEquals(1, s.count);
+	}
+
+	@Test
+	public void testTail() throws IOException {
+		CountingSupplier s = new CountingSupplier(100);
+		ReplayableInputStreamSupplier r = ReplayableInputStreamSupplier.create(s, 10);
+		// The first stream to read past the buffer uses the stream that filled the buffer
+		assertArrayEquals(s.data, readAll(r.newInputStream()));
+		assertEquals(1, s.count);
+		// Subsequent streams open a new stream for the tail
+		assertArrayEquals(s.data, readAll(r.newInputStream()));
+		assertEquals(2, s.count);
+		r.close();
+	}
+
+}
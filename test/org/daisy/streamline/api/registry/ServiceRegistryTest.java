@@ -0,0 +1,62 @@
+package org.daisy.streamline.api.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ServiceRegistryTest {
+
+	@Test
+	public void testRegistry() {
+		AtomicInteger calls = new AtomicInteger();
+		// Selects the longest provider that starts with the key, or the first if equal
+		ServiceRegistry<String, String> registry = new ServiceRegistry<>((String key, List<String> providers)->{
+			calls.incrementAndGet();
+			return providers.stream().filter(v->v.startsWith(key)).reduce((a, b)->b.length()>a.length()?b:a);
+		}, 100, true);
+		registry.add("ab");
+		registry.add("xyz");
+		assertEquals("ab", registry.get("a").get());
+		assertEquals("ab", registry.get("a").get());
+		assertFalse(registry.get("b").isPresent());
+		assertEquals(2, calls.get());
+		registry.add("abc");
+		assertEquals("abc", registry.get("a").get());
+		assertEquals(Optional.empty(), registry.get("b"));
+		registry.remove("xyz");
+		calls.set(0);
+		assertEquals("abc", registry.get("a").get());
+		assertEquals(0, calls.get());
+		registry.remove("abc");
+		assertEquals("ab", registry.get("a").get());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testBounded() {
+		AtomicInteger calls = new AtomicInteger();
+		ServiceRegistry<String, String> registry = new ServiceRegistry<>((String key, List<String> providers)->{
+			calls.incrementAndGet();
+			return providers.stream().filter(v->v.startsWith(key==null?"":key)).findFirst();
+		}, 2, true);
+		registry.add("abc");
+		registry.get("a");
+		registry.get("b");
+		registry.get("c");
+		assertEquals(3, calls.get());
+		// New keys are still cached when the cache is full
+		registry.get("c");
+		assertEquals(3, calls.get());
+		// Null keys are resolved, but not cached
+		assertEquals("abc", registry.get(null).get());
+		assertEquals("abc", registry.get(null).get());
+		assertEquals(5, calls.get());
+	}
+
+}
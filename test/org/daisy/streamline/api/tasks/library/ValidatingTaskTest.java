@@ -0,0 +1,114 @@
+package org.daisy.streamline.api.tasks.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.daisy.streamline.api.media.AnnotatedFile;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+import org.daisy.streamline.api.media.InputStreamSupplier;
+import org.daisy.streamline.api.tasks.InternalTaskException;
+import org.daisy.streamline.api.tasks.ReadWriteTask;
+import org.daisy.streamline.api.validity.ValidationReport;
+import org.daisy.streamline.api.validity.Validator;
+import org.daisy.streamline.api.validity.ValidatorMessage;
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ValidatingTaskTest {
+
+	private static class WriterTask extends ReadWriteTask {
+		private WriterTask() {
+			super("writer");
+		}
+
+		@Override
+		@Deprecated
+		public void execute(File input, File output) throws InternalTaskException {
+			execute(DefaultAnnotatedFile.with(input.toPath()).build(), output);
+		}
+
+		@Override
+		public AnnotatedFile execute(AnnotatedFile input, File output) throws InternalTaskException {
+			try (OutputStream os = Files.newOutputStream(output.toPath())) {
+				for (int i=0; i<10; i++) {
+					os.write(new byte[1000]);
+					os.flush();
+					Thread.sleep(5);
+				}
+			} catch (IOException | InterruptedException e) {
+				throw new InternalTaskException(e);
+			}
+			return DefaultAnnotatedFile.with(output.toPath()).build();
+		}
+	}
+
+	private static class CountingValidator implements Validator {
+		@Override
+		public ValidationReport validate(URL input, Map<String, Object> options) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options) {
+			long count = 0;
+			try (InputStream is = input.newInputStream()) {
+				byte[] b = new byte[100];
+				int len;
+				while ((len = is.read(b))>-1) {
+					count += len;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return new ValidationReport.Builder(null)
+					.addMessage(ValidatorMessage.with(Type.NOTICE).message(""+count).build())
+					.build();
+		}
+	}
+
+	@Test
+	public void testValidateWhileWriting() throws InternalTaskException, IOException {
+		File output = File.createTempFile("test", ".tmp");
+		output.delete();
+		try {
+			List<ValidationReport> reports = new ArrayList<>();
+			ValidatingTask task = ValidatingTask.with(new WriterTask(), new CountingValidator())
+					.reportHandler(reports::add)
+					.build();
+			task.execute(DefaultAnnotatedFile.with(output.toPath()).build(), output);
+			assertEquals(1, reports.size());
+			assertTrue(reports.get(0).isValid());
+			assertEquals("10000", reports.get(0).getMessages().get(0).getMessage().get());
+		} finally {
+			output.delete();
+		}
+	}
+
+	@Test
+	public void testExistingOutput() throws InternalTaskException, IOException {
+		File output = File.createTempFile("test", ".tmp");
+		try {
+			Files.write(output.toPath(), new byte[20000]);
+			List<ValidationReport> reports = new ArrayList<>();
+			ValidatingTask task = ValidatingTask.with(new WriterTask(), new CountingValidator())
+					.reportHandler(reports::add)
+					.build();
+			task.execute(DefaultAnnotatedFile.with(output.toPath()).build(), output);
+			assertEquals("10000", reports.get(0).getMessages().get(0).getMessage().get());
+		} finally {
+			output.delete();
+		}
+	}
+
+}
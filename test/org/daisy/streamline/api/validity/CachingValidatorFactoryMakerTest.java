@@ -0,0 +1,142 @@
+package org.daisy.streamline.api.validity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.daisy.streamline.api.media.DefaultFileDetails;
+import org.daisy.streamline.api.media.FileDetails;
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CachingValidatorFactoryMakerTest {
+
+	private static TestMaker newMaker(AtomicInteger calls) {
+		// The same validator class for every format
+		return new TestMaker(id->new TestValidator(id, calls, ValidatorMessage.with(Type.ERROR).message("Test").lineNumber(2).build()));
+	}
+
+	@Test
+	public void testCache() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		TestMaker tm = newMaker(calls);
+		CachingValidatorFactoryMaker maker = CachingValidatorFactoryMaker.with(tm).build();
+		URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+		maker.newValidator("test").validate(input);
+		ValidationReport r = maker.newValidator("test").validate(input);
+		assertEquals(1, calls.get());
+		assertFalse(r.isValid());
+		maker.newValidator("test").validate(input, Collections.singletonMap("key", "value"));
+		assertEquals(2, calls.get());
+		assertEquals(2, maker.size());
+	}
+
+	@Test
+	public void testCacheNullOptions() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		CachingValidatorFactoryMaker maker = CachingValidatorFactoryMaker.with(newMaker(calls)).build();
+		URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+		maker.newValidator("test").validate(input, null);
+		maker.newValidator("test").validate(input, Collections.emptyMap());
+		assertEquals(1, calls.get());
+		maker.newValidator("test").validate(input, Collections.singletonMap(null, "value"));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testCacheWithListener() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		CachingValidatorFactoryMaker maker = CachingValidatorFactoryMaker.with(newMaker(calls)).build();
+		URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+		AtomicInteger messages = new AtomicInteger();
+		ValidationListener listener = m->messages.incrementAndGet()>0;
+		maker.newValidator("test").validate(input, Collections.emptyMap(), listener);
+		ValidationReport r = maker.newValidator("test").validate(input, Collections.emptyMap(), listener);
+		assertEquals(1, calls.get());
+		assertEquals(2, messages.get());
+		assertFalse(r.isValid());
+	}
+
+	@Test
+	public void testCacheByDetails() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		TestMaker tm = newMaker(calls);
+		CachingValidatorFactoryMaker maker = CachingValidatorFactoryMaker.with(tm).build();
+		URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+		FileDetails a = new DefaultFileDetails.Builder().formatName("a").build();
+		FileDetails b = new DefaultFileDetails.Builder().formatName("b").build();
+		maker.newValidator(a).get().validate(input);
+		maker.newValidator(a).get().validate(input);
+		assertEquals(1, calls.get());
+		maker.newValidator(b).get().validate(input);
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testStorage() throws IOException {
+		Path storage = Files.createTempDirectory("test");
+		try {
+			URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+			AtomicInteger calls = new AtomicInteger();
+			TestMaker tm = newMaker(calls);
+			CachingValidatorFactoryMaker.with(tm).storage(storage).build().newValidator("test").validate(input);
+			ValidationReport r = CachingValidatorFactoryMaker.with(tm).storage(storage).build().newValidator("test").validate(input);
+			assertEquals(1, calls.get());
+			assertFalse(r.isValid());
+			assertEquals(1, r.getMessages().size());
+			assertEquals(2, r.getMessages().get(0).getLineNumber());
+			assertEquals("Test", r.getMessages().get(0).getMessage().get());
+		} finally {
+			CachingValidatorFactoryMaker.with(newMaker(new AtomicInteger())).storage(storage).build().clear();
+			Files.delete(storage);
+		}
+	}
+
+	@Test
+	public void testStorageBounded() throws IOException {
+		Path storage = Files.createTempDirectory("test");
+		try {
+			URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+			CachingValidatorFactoryMaker maker = CachingValidatorFactoryMaker.with(newMaker(new AtomicInteger())).storage(storage).maxEntries(1).build();
+			maker.newValidator("test").validate(input, Collections.singletonMap("key", "a"));
+			maker.newValidator("test").validate(input, Collections.singletonMap("key", "b"));
+			try (Stream<Path> files = Files.list(storage)) {
+				assertEquals(1, files.count());
+			}
+		} finally {
+			CachingValidatorFactoryMaker.with(newMaker(new AtomicInteger())).storage(storage).build().clear();
+			Files.delete(storage);
+		}
+	}
+
+	@Test
+	public void testStorageLongMessage() throws IOException {
+		Path storage = Files.createTempDirectory("test");
+		try {
+			URL input = Paths.get("test/resource-files/test.xml").toUri().toURL();
+			char[] c = new char[70000];
+			Arrays.fill(c, '\u00e5');
+			String message = new String(c);
+			AtomicInteger calls = new AtomicInteger();
+			TestMaker tm = new TestMaker(id->new TestValidator(id, calls, ValidatorMessage.with(Type.ERROR).message(message).build()));
+			CachingValidatorFactoryMaker.with(tm).storage(storage).build().newValidator("test").validate(input);
+			ValidationReport r = CachingValidatorFactoryMaker.with(tm).storage(storage).build().newValidator("test").validate(input);
+			assertEquals(1, calls.get());
+			assertEquals(message, r.getMessages().get(0).getMessage().get());
+		} finally {
+			CachingValidatorFactoryMaker.with(newMaker(new AtomicInteger())).storage(storage).build().clear();
+			Files.delete(storage);
+		}
+	}
+
+}
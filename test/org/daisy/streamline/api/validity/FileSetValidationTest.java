@@ -0,0 +1,175 @@
+package org.daisy.streamline.api.validity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.daisy.streamline.api.media.BaseFolder;
+import org.daisy.streamline.api.media.DefaultAnnotatedFile;
+import org.daisy.streamline.api.media.DefaultFileSet;
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class FileSetValidationTest {
+
+	@Test
+	public void testValidate() {
+		DefaultFileSet fs = DefaultFileSet.with(BaseFolder.with("test/resource-files"), DefaultAnnotatedFile.create(Paths.get("test/resource-files/test.xml")))
+				.add(DefaultAnnotatedFile.create(Paths.get("test/resource-files/test.qqq")))
+				.add(DefaultAnnotatedFile.create(Paths.get("test/resource-files/unknown.unk")))
+				.build();
+		Validator validator = new TestValidator(ValidatorMessage.with(Type.WARNING).message("Test").build()) {
+			@Override
+			public ValidationReport validate(URL input, Map<String, Object> options) {
+				if (input.getPath().endsWith(".qqq")) {
+					throw new IllegalStateException();
+				}
+				return super.validate(input, options);
+			}
+		};
+		FileSetValidationReport r = FileSetValidation.with(new TestMaker(id->validator)).parallelism(2).build().validate(fs);
+		assertFalse(r.isValid());
+		assertEquals(Arrays.asList("test.xml", "test.qqq"), Arrays.asList(r.getResourceReports().keySet().toArray()));
+		assertTrue(r.getResourceReport("test.xml").get().isValid());
+		assertEquals(Collections.singleton("unknown.unk"), r.getUnvalidatedResources());
+		assertEquals(2, r.getCombinedReport().getMessages().size());
+		assertEquals("test.xml", r.getCombinedReport().getMessages().get(0).getURI().get().toString());
+		assertEquals(Type.FATAL_ERROR, r.getCombinedReport().getMessages().get(1).getType());
+	}
+
+	@Test
+	public void testValidateOmitted() {
+		DefaultFileSet fs = DefaultFileSet.with(BaseFolder.with("test/resource-files"), DefaultAnnotatedFile.create(Paths.get("test/resource-files/test.xml")))
+				.add(DefaultAnnotatedFile.create(Paths.get("test/resource-files/test.qqq")))
+				.build();
+		Validator validator = new TestValidator() {
+			@Override
+			public ValidationReport validate(URL input, Map<String, Object> options) {
+				return new ValidationReport.Builder(input).maxMessages(1)
+						.addMessage(ValidatorMessage.with(Type.WARNING).message("Kept").build())
+						.addMessage(ValidatorMessage.with(Type.ERROR).message("Omitted 1").lineNumber(1).build())
+						.addMessage(ValidatorMessage.with(Type.ERROR).message("Omitted 2").lineNumber(2).build())
+						.build();
+			}
+		};
+		ValidationReport r = FileSetValidation.with(new TestMaker(id->validator)).build().validate(fs).getCombinedReport();
+		assertFalse(r.isValid());
+		assertEquals(2, r.getMessages().size());
+		assertEquals(4, r.getOmittedCount(Type.ERROR));
+		assertEquals(1, r.getOmittedMessageCounts().size());
+		assertEquals(4, r.getOmittedMessageCounts().get(0).getCount());
+		assertEquals(4, r.getOmittedLineNumbers().length);
+	}
+
+	@Test
+	public void testIncremental() throws IOException {
+		Path dir = Files.createTempDirectory("test");
+		try {
+			Path a = Files.write(dir.resolve("a.xml"), "a".getBytes(StandardCharsets.UTF_8));
+			Path b = Files.write(dir.resolve("b.xml"), "b".getBytes(StandardCharsets.UTF_8));
+			Path c = Files.write(dir.resolve("c.xml"), "c".getBytes(StandardCharsets.UTF_8));
+			DefaultFileSet fs = DefaultFileSet.with(BaseFolder.with(dir), DefaultAnnotatedFile.create(a))
+					.add(DefaultAnnotatedFile.create(b))
+					.add(DefaultAnnotatedFile.create(c))
+					.build();
+			AtomicInteger count = new AtomicInteger();
+			FileSetValidation fsv = FileSetValidation.with(new TestMaker(id->new TestValidator(id, count))).incremental(true)
+					.dependencies((f, path)->"a.xml".equals(path)?Collections.singleton("b.xml"):Collections.emptySet())
+					.build();
+			assertTrue(fsv.validate(fs).isValid());
+			assertEquals(3, count.get());
+			assertTrue(fsv.validate(fs).isValid());
+			assertEquals(3, count.get());
+			Files.write(b, "changed".getBytes(StandardCharsets.UTF_8));
+			FileSetValidationReport r = fsv.validate(fs);
+			// b changed and a depends on b
+			assertEquals(5, count.get());
+			assertEquals(3, r.getResourceReports().size());
+		} finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				for (Path p : files.collect(Collectors.toList())) {
+					Files.delete(p);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testIncrementalRemovedDependency() throws IOException {
+		Path dir = Files.createTempDirectory("test");
+		try {
+			Path a = Files.write(dir.resolve("a.xml"), "a".getBytes(StandardCharsets.UTF_8));
+			Path b = Files.write(dir.resolve("b.xml"), "b".getBytes(StandardCharsets.UTF_8));
+			Path c = Files.write(dir.resolve("c.xml"), "c".getBytes(StandardCharsets.UTF_8));
+			AtomicInteger count = new AtomicInteger();
+			FileSetValidation fsv = FileSetValidation.with(new TestMaker(id->new TestValidator(id, count))).incremental(true)
+					.dependencies((f, path)->"a.xml".equals(path)?Collections.singleton("b.xml"):Collections.emptySet())
+					.build();
+			fsv.validate(DefaultFileSet.with(BaseFolder.with(dir), DefaultAnnotatedFile.create(a))
+					.add(DefaultAnnotatedFile.create(b))
+					.add(DefaultAnnotatedFile.create(c))
+					.build());
+			assertEquals(3, count.get());
+			Files.delete(b);
+			FileSetValidationReport r = fsv.validate(DefaultFileSet.with(BaseFolder.with(dir), DefaultAnnotatedFile.create(a))
+					.add(DefaultAnnotatedFile.create(c))
+					.build());
+			// b was removed and a depends on b
+			assertEquals(4, count.get());
+			assertEquals(2, r.getResourceReports().size());
+		} finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				for (Path p : files.collect(Collectors.toList())) {
+					Files.delete(p);
+				}
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testIncrementalFailure() throws IOException {
+		Path dir = Files.createTempDirectory("test");
+		try {
+			Path a = Files.write(dir.resolve("a.xml"), "a".getBytes(StandardCharsets.UTF_8));
+			DefaultFileSet fs = DefaultFileSet.with(BaseFolder.with(dir), DefaultAnnotatedFile.create(a)).build();
+			AtomicInteger count = new AtomicInteger();
+			TestMaker maker = new TestMaker(id->new TestValidator(id, count) {
+				@Override
+				public ValidationReport validate(URL input, Map<String, Object> options) {
+					ValidationReport ret = super.validate(input, options);
+					if (getCalls()==1) {
+						throw new IllegalStateException();
+					}
+					return ret;
+				}
+			});
+			FileSetValidation fsv = FileSetValidation.with(maker).incremental(true).build();
+			assertFalse(fsv.validate(fs).isValid());
+			// The failure isn't reused
+			assertTrue(fsv.validate(fs).isValid());
+			assertEquals(2, count.get());
+			assertTrue(fsv.validate(fs).isValid());
+			assertEquals(2, count.get());
+		} finally {
+			Files.delete(dir.resolve("a.xml"));
+			Files.delete(dir);
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.daisy.streamline.api.validity;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.daisy.streamline.api.media.FileDetails;
+
+/**
+ * Provides a validator factory maker for tests. Validators are created
+ * using the specified function, for any file details except those with
+ * the extension "unk".
+ */
+@SuppressWarnings("javadoc")
+class TestMaker implements ValidatorFactoryMakerService {
+	private final Function<String, Validator> validators;
+
+	TestMaker(Function<String, Validator> validators) {
+		this.validators = validators;
+	}
+
+	@Override
+	public Validator newValidator(String identifier) {
+		return validators.apply(identifier);
+	}
+
+	@Override
+	public Optional<Validator> newValidator(FileDetails details) {
+		return "unk".equals(details.getExtension())?Optional.empty():Optional.ofNullable(newValidator(details.getFormatName()));
+	}
+
+	@Override
+	public Collection<String> listIdentifiers() {
+		return Collections.singleton("test");
+	}
+}
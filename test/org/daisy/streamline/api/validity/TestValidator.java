@@ -0,0 +1,51 @@
+package org.daisy.streamline.api.validity;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.daisy.streamline.api.media.InputStreamSupplier;
+
+/**
+ * Provides a validator for tests. The validator reports the same
+ * messages for every input, and counts the number of validations.
+ */
+@SuppressWarnings("javadoc")
+class TestValidator implements Validator {
+	private final String name;
+	private final AtomicInteger calls;
+	private final List<ValidatorMessage> messages;
+
+	TestValidator(ValidatorMessage ... messages) {
+		this("test", new AtomicInteger(), messages);
+	}
+
+	TestValidator(String name, AtomicInteger calls, ValidatorMessage ... messages) {
+		this.name = name;
+		this.calls = calls;
+		this.messages = Arrays.asList(messages);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getCalls() {
+		return calls.get();
+	}
+
+	@Override
+	public ValidationReport validate(URL input, Map<String, Object> options) {
+		calls.incrementAndGet();
+		ValidationReport.Builder builder = new ValidationReport.Builder(input);
+		messages.forEach(builder::addMessage);
+		return builder.build();
+	}
+
+	@Override
+	public ValidationReport validate(InputStreamSupplier input, Map<String, Object> options) {
+		return validate((URL)null, options);
+	}
+}
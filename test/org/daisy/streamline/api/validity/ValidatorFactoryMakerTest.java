@@ -0,0 +1,109 @@
+package org.daisy.streamline.api.validity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.daisy.streamline.api.media.DefaultFileDetails;
+import org.daisy.streamline.api.media.FileDetails;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ValidatorFactoryMakerTest {
+
+	private static class TestFactory implements ValidatorFactory {
+		private final String name;
+		private final double value;
+		private final Reuse reuse;
+		private int calls = 0;
+		private int created = 0;
+		private TestFactory(String name, double value) {
+			this(name, value, Reuse.NONE);
+		}
+
+		private TestFactory(String name, double value, Reuse reuse) {
+			this.name = name;
+			this.value = value;
+			this.reuse = reuse;
+		}
+
+		@Override
+		public Reuse getReuse(String identifier) {
+			return reuse;
+		}
+
+		@Override
+		public Collection<String> listIdentifiers() {
+			return Collections.singleton(name);
+		}
+
+		@Override
+		public Validator newValidator(String identifier) throws ValidatorFactoryException {
+			created++;
+			return new TestValidator(name, new AtomicInteger());
+		}
+
+		@Override
+		public Validator newValidator(FileDetails details) throws ValidatorFactoryException {
+			return new TestValidator(name, new AtomicInteger());
+		}
+
+		@Override
+		public Optional<Double> supportsDetails(FileDetails details) {
+			calls++;
+			return "xml".equals(details.getExtension())?Optional.of(value):Optional.empty();
+		}
+	}
+
+	@Test
+	public void testNewValidator() {
+		ValidatorFactoryMaker maker = new ValidatorFactoryMaker();
+		TestFactory a = new TestFactory("a", -1);
+		TestFactory b = new TestFactory("b", 1);
+		maker.addFactory(a);
+		maker.addFactory(b);
+		FileDetails xml = new DefaultFileDetails.Builder().extension("xml").build();
+		assertEquals("b", ((TestValidator)maker.newValidator(xml).get()).getName());
+		assertEquals("b", ((TestValidator)maker.newValidator(xml).get()).getName());
+		assertEquals(1, a.calls);
+		assertEquals(1, b.calls);
+		FileDetails txt = new DefaultFileDetails.Builder().extension("txt").build();
+		assertFalse(maker.newValidator(txt).isPresent());
+		assertFalse(maker.newValidator(txt).isPresent());
+		assertEquals(2, b.calls);
+		maker.removeFactory(b);
+		assertTrue(maker.newValidator(xml).isPresent());
+		assertEquals("a", ((TestValidator)maker.newValidator(xml).get()).getName());
+	}
+
+	@Test
+	public void testShared() {
+		ValidatorFactoryMaker maker = new ValidatorFactoryMaker();
+		TestFactory a = new TestFactory("a", 1, ValidatorFactory.Reuse.SHARED);
+		maker.addFactory(a);
+		assertTrue(maker.newValidator("a")==maker.newValidator("a"));
+		assertEquals(1, a.created);
+		maker.removeFactory(a);
+		maker.addFactory(a);
+		maker.newValidator("a");
+		assertEquals(2, a.created);
+	}
+
+	@Test
+	public void testPooled() {
+		ValidatorFactoryMaker maker = new ValidatorFactoryMaker();
+		TestFactory a = new TestFactory("a", 1, ValidatorFactory.Reuse.POOLED);
+		maker.addFactory(a);
+		for (int i=0; i<5; i++) {
+			assertTrue(maker.newValidator("a").validate((URL)null).isValid());
+		}
+		assertEquals(1, a.created);
+	}
+
+}
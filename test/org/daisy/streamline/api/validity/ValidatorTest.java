@@ -0,0 +1,146 @@
+package org.daisy.streamline.api.validity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.daisy.streamline.api.validity.ValidatorMessage.Type;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ValidatorTest {
+
+	private static final ValidatorMessage[] MESSAGES = {
+			ValidatorMessage.with(Type.WARNING).build(),
+			ValidatorMessage.with(Type.ERROR).build(),
+			ValidatorMessage.with(Type.FATAL_ERROR).build(),
+			ValidatorMessage.with(Type.NOTICE).build()
+	};
+
+	@Test
+	public void testStopOnFatalError() {
+		ValidationReport r = new TestValidator(MESSAGES).validate((URL)null, Collections.emptyMap(), ValidationListener.stopOnFatalError());
+		assertEquals(3, r.getMessages().size());
+		assertFalse(r.isValid());
+		assertTrue(r.isAborted());
+	}
+
+	@Test
+	public void testStopAfterErrors() {
+		ValidationReport r = new TestValidator(MESSAGES).validate((URL)null, Collections.emptyMap(), ValidationListener.stopAfterErrors(1));
+		assertEquals(2, r.getMessages().size());
+		assertTrue(r.isAborted());
+	}
+
+	@Test
+	public void testComplete() {
+		ValidationReport r = new TestValidator(MESSAGES).validate((URL)null, Collections.emptyMap(), m->true);
+		assertEquals(4, r.getMessages().size());
+		assertFalse(r.isValid());
+		assertFalse(r.isAborted());
+	}
+
+	@Test
+	public void testMaxMessages() {
+		ValidationReport.Builder builder = new ValidationReport.Builder(null).maxMessages(2);
+		for (int i=1; i<=10; i++) {
+			builder.addMessage(ValidatorMessage.with(i%2==0?Type.ERROR:Type.WARNING).message("Element 'e"+i+"' at "+i).lineNumber(i).build());
+		}
+		ValidationReport r = builder.build();
+		assertEquals(2, r.getMessages().size());
+		assertEquals(8, r.getOmittedCount());
+		assertEquals(4, r.getOmittedCount(Type.ERROR));
+		assertEquals(2, r.getOmittedMessageCounts().size());
+		assertEquals("Element '*' at #", r.getOmittedMessageCounts().get(0).getTemplate().get());
+		assertEquals(8, r.getOmittedLineNumbers().length);
+		assertEquals(3, r.getOmittedLineNumbers()[0]);
+		assertFalse(r.isValid());
+	}
+
+	@Test
+	public void testValidateAsyncTimeout() throws InterruptedException {
+		CountDownLatch interrupted = new CountDownLatch(1);
+		Validator v = new TestValidator(MESSAGES) {
+			@Override
+			public ValidationReport validate(URL input, Map<String, Object> options) {
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return super.validate(input, options);
+			}
+		};
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			v.validateAsync((URL)null, Collections.emptyMap(), exec, Duration.ofMillis(50)).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		} finally {
+			exec.shutdown();
+		}
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testValidateAsyncClosesStreams() throws Exception {
+		CountDownLatch opened = new CountDownLatch(1);
+		InputStream[] streams = new InputStream[1];
+		Validator v = new TestValidator(MESSAGES) {
+			@Override
+			public ValidationReport validate(URL input, Map<String, Object> options) {
+				try {
+					streams[0] = input.openStream();
+					opened.countDown();
+					Thread.sleep(10000);
+				} catch (IOException | InterruptedException e) {
+					// Stopped
+				}
+				return super.validate(input, options);
+			}
+		};
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			CompletableFuture<ValidationReport> f = v.validateAsync(new File("test/resource-files/test.xml").toURI().toURL(), Collections.emptyMap(), exec, Duration.ofSeconds(10));
+			assertTrue(opened.await(5, TimeUnit.SECONDS));
+			f.cancel(true);
+			try {
+				streams[0].read();
+				fail();
+			} catch (IOException e) {
+				// Closed
+			}
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	public void testValidateAsync() throws InterruptedException, ExecutionException {
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			ValidationReport r = new TestValidator(MESSAGES).validateAsync((URL)null, Collections.emptyMap(), exec, Duration.ofSeconds(10)).get();
+			assertEquals(4, r.getMessages().size());
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+}